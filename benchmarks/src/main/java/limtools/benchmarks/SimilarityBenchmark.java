@@ -0,0 +1,94 @@
+package limtools.benchmarks;
+
+import ij.ImagePlus;
+import ij.Prefs;
+
+import java.util.concurrent.TimeUnit;
+
+import limtools.Similarity_Index;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the overlap computation of {@link Similarity_Index} on
+ * synthetic masks, for a single pair and for the pairwise matrix. The
+ * {@code voxels} secondary result gives the throughput in voxels per second.
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SimilarityBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Masks {
+        @Param("256")
+        public int size;
+
+        @Param("128")
+        public int slices;
+
+        @Param("1")
+        public int threads;
+
+        /** Number of masks of the pairwise matrix. */
+        @Param("6")
+        public int masks;
+
+        ImagePlus a, b;
+        ImagePlus[] all;
+        long voxels;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Prefs.setThreads(threads);
+            a = SyntheticImages.mask(size, slices, 1L);
+            b = SyntheticImages.mask(size, slices, 2L);
+            all = new ImagePlus[masks];
+            for (int i = 0; i < masks; i++)
+                all[i] = SyntheticImages.mask(size, slices, i + 1L);
+            voxels = (long) size * size * slices;
+        }
+    }
+
+    /** Number of voxels processed, reported as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Voxels {
+        public long voxels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            voxels = 0;
+        }
+    }
+
+    @Benchmark
+    public long[] overlap(Masks m, Voxels v) {
+        v.voxels += m.voxels;
+        return Similarity_Index.overlap(m.a, m.b);
+    }
+
+    /** Counts the voxels of every mask once. */
+    @Benchmark
+    public long[][] pairwiseMatrix(Masks m, Voxels v) {
+        v.voxels += m.voxels * m.masks;
+        return Similarity_Index.intersections(m.all);
+    }
+}
@@ -0,0 +1,126 @@
+package limtools.benchmarks;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.reflect.Array;
+import java.util.Random;
+
+/**
+ * Reproducible synthetic images for the benchmarks.
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class SyntheticImages {
+
+    /**
+     * Creates a dynamic image (HyperStack, one channel) where a fraction of
+     * the voxels is background (0 in every frame) and the rest hold a noisy
+     * uptake curve that fits in the range of the data type.
+     * @param bitDepth 8, 16 or 32.
+     * @param size Width and height.
+     * @param slices Number of slices.
+     * @param frames Number of frames.
+     * @param background Fraction of background voxels (0-1).
+     * @param seed Seed of the random generator.
+     * @return The new image.
+     */
+    public static ImagePlus dynamic(int bitDepth, int size, int slices,
+                                    int frames, double background,
+                                    long seed) {
+        ImagePlus imp = IJ.createImage("dynamic", bitDepth + "-bit", size,
+                                       size, 1, slices, frames);
+        ImageStack is = imp.getStack();
+        Random r = new Random(seed);
+        double top = bitDepth == 8 ? 250.0 : bitDepth == 16 ? 60000.0
+                                                            : 1000.0;
+        int n = size * size;
+        for (int z = 1; z <= slices; z++) {
+            for (int i = 0; i < n; i++) {
+                if (r.nextDouble() < background)
+                    continue;
+                // Curve shape: fast rise and slow washout
+                double amplitude = top * (0.2 + 0.6 * r.nextDouble());
+                double k = 0.05 + 0.2 * r.nextDouble();
+                for (int f = 1; f <= frames; f++) {
+                    double t = f;
+                    double v = amplitude * (1.0 - Math.exp(-t))
+                            * Math.exp(-k * t / frames);
+                    v *= 1.0 + 0.05 * r.nextGaussian();
+                    v = Math.max(1.0, Math.min(top, v));
+                    int index = imp.getStackIndex(1, z, f);
+                    is.setVoxel(i % size, i / size, index - 1, v);
+                }
+            }
+        }
+        return imp;
+    }
+
+    /**
+     * Creates a binary mask (8-bit, 0 or 255) with a random sphere-like
+     * region plus some noise.
+     * @param size Width and height.
+     * @param slices Number of slices.
+     * @param seed Seed of the random generator.
+     * @return The new image.
+     */
+    public static ImagePlus mask(int size, int slices, long seed) {
+        ImagePlus imp = IJ.createImage("mask", "8-bit", size, size, slices);
+        ImageStack is = imp.getStack();
+        Random r = new Random(seed);
+        double cx = size * (0.4 + 0.2 * r.nextDouble());
+        double cy = size * (0.4 + 0.2 * r.nextDouble());
+        double cz = slices * (0.4 + 0.2 * r.nextDouble());
+        double radius = size * 0.35;
+        double zscale = (double) size / slices;
+        for (int z = 1; z <= slices; z++) {
+            byte[] p = (byte[]) is.getPixels(z);
+            for (int i = 0; i < p.length; i++) {
+                double dx = i % size - cx, dy = i / size - cy;
+                double dz = (z - cz) * zscale;
+                boolean inside = dx * dx + dy * dy + dz * dz < radius * radius;
+                if (r.nextDouble() < 0.02)
+                    inside = !inside;
+                p[i] = (byte) (inside ? 255 : 0);
+            }
+        }
+        return imp;
+    }
+
+    /**
+     * Takes a copy of the pixel arrays of an image.
+     * @param imp Image.
+     * @return One array per stack position.
+     */
+    public static Object[] snapshot(ImagePlus imp) {
+        ImageStack is = imp.getStack();
+        Object[] res = new Object[is.getSize()];
+        for (int i = 0; i < res.length; i++)
+            res[i] = copy(is.getPixels(i + 1));
+        return res;
+    }
+
+    /**
+     * Restores the pixels saved with {@link #snapshot(ImagePlus)}.
+     * @param imp Image.
+     * @param snapshot Saved pixels.
+     */
+    public static void restore(ImagePlus imp, Object[] snapshot) {
+        ImageStack is = imp.getStack();
+        for (int i = 0; i < snapshot.length; i++) {
+            Object src = snapshot[i];
+            System.arraycopy(src, 0, is.getPixels(i + 1), 0,
+                             Array.getLength(src));
+        }
+    }
+
+    private static Object copy(Object pixels) {
+        if (pixels instanceof byte[])
+            return ((byte[]) pixels).clone();
+        if (pixels instanceof short[])
+            return ((short[]) pixels).clone();
+        return ((float[]) pixels).clone();
+    }
+}
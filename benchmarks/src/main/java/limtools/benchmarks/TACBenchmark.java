@@ -0,0 +1,187 @@
+package limtools.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.Calibration;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import limtools.ActiveVoxels;
+import limtools.Average_Frames;
+import limtools.Dynamic_to_Results;
+import limtools.Measure_Time_Activity;
+import limtools.Normalize_Dynamic;
+import limtools.TACEngine;
+import limtools.Utils;
+import limtools.VoxelWriter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * <p>
+ * Benchmarks of the voxelwise operations on a synthetic dynamic image. Each
+ * benchmark processes the whole image once per invocation, and the
+ * {@code voxels} secondary result gives the throughput in voxels (spatial
+ * positions, all frames included) per second.
+ * </p>
+ *
+ * <p>
+ * Run with {@code -prof gc} to get the allocation rate as well.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TACBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Dynamic {
+        @Param({"8", "16", "32"})
+        public int bitDepth;
+
+        @Param("128")
+        public int size;
+
+        @Param("32")
+        public int slices;
+
+        @Param("24")
+        public int frames;
+
+        /** Fraction of background voxels. */
+        @Param("0.75")
+        public double background;
+
+        @Param("1")
+        public int threads;
+
+        ImagePlus imp;
+        Object[] pristine;
+        long voxels;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Prefs.setThreads(threads);
+            imp = SyntheticImages.dynamic(bitDepth, size, slices, frames,
+                                          background, 42L);
+            pristine = SyntheticImages.snapshot(imp);
+            voxels = (long) size * size * slices;
+        }
+    }
+
+    /** Number of voxels processed, reported as a rate. */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Voxels {
+        public long voxels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            voxels = 0;
+        }
+    }
+
+    @Benchmark
+    public void utilsGetTAC(Dynamic d, Voxels v, Blackhole bh) {
+        ImagePlus imp = d.imp;
+        ImageStack is = imp.getStack();
+        Calibration cal = imp.getCalibration();
+        for (int z = 1; z <= d.slices; z++)
+            for (int y = 0; y < d.size; y++)
+                for (int x = 0; x < d.size; x++)
+                    bh.consume(Utils.getTAC(x, y, z, d.frames, imp, is, cal));
+        v.voxels += d.voxels;
+    }
+
+    @Benchmark
+    public void engineReadSlice(Dynamic d, Voxels v, Blackhole bh) {
+        TACEngine engine = new TACEngine(d.imp);
+        double[] buffer = engine.createSliceBuffer();
+        for (int z = 1; z <= d.slices; z++) {
+            engine.readSlice(z, buffer);
+            bh.consume(buffer);
+        }
+        v.voxels += d.voxels;
+    }
+
+    @Benchmark
+    public ImagePlus averageFrames(Dynamic d, Voxels v) {
+        v.voxels += d.voxels;
+        return Average_Frames.average(d.imp, 1, d.frames);
+    }
+
+    /**
+     * Includes restoring the original pixels (a raw copy of the stack) and
+     * rebuilding the index of active voxels, which normalizing invalidates.
+     */
+    @Benchmark
+    public void normalizeDynamic(Dynamic d, Voxels v) {
+        SyntheticImages.restore(d.imp, d.pristine);
+        Normalize_Dynamic.normalize(d.imp);
+        v.voxels += d.voxels;
+    }
+
+    /** With the index of active voxels already cached. */
+    @Benchmark
+    public double measureTimeActivity(Dynamic d, Voxels v) {
+        v.voxels += d.voxels;
+        return Measure_Time_Activity.measureStatistics(d.imp).getMean(0, 0);
+    }
+
+    /** Rebuilds the index of active voxels on every invocation. */
+    @Benchmark
+    public double measureTimeActivityCold(Dynamic d, Voxels v) {
+        ActiveVoxels.invalidate(d.imp);
+        v.voxels += d.voxels;
+        return Measure_Time_Activity.measureStatistics(d.imp).getMean(0, 0);
+    }
+
+    @Benchmark
+    public long dynamicToResults(Dynamic d, Voxels v, Blackhole bh)
+            throws IOException {
+        NullWriter writer = new NullWriter(d.frames, bh);
+        Dynamic_to_Results.export(d.imp, writer);
+        v.voxels += d.voxels;
+        return writer.getCount();
+    }
+
+    // Discards the rows, so only the extraction is measured
+    private static class NullWriter extends VoxelWriter {
+        private final Blackhole bh;
+
+        NullWriter(int frames, Blackhole bh) {
+            super(frames);
+            this.bh = bh;
+        }
+
+        @Override
+        protected void writeRecord(int x, int y, int slice, double[] buffer,
+                                   int offset) {
+            bh.consume(buffer[offset]);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package limtools;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.List;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * Index of the active voxels of a dynamic image: those inside the attached
+ * {@link VoxelMask} (if any) whose TAC is not masked (see
+ * {@link Utils#isMasked(double[], double)}). It stores, for each slice, the
+ * sorted offsets ({@code y * width + x}) of those voxels.
+ * </p>
+ *
+ * <p>
+ * The index is built in a single pass and cached in the image, so the
+ * voxelwise plugins can read only the active TACs (see
+ * {@link TACEngine#readVoxels(int, int[], double[])}) and their running time
+ * depends on the number of active voxels instead of the whole volume.
+ * </p>
+ *
+ * <p>
+ * The cached index is only trusted while nothing can have changed the
+ * pixels: it is rebuilt when the stack, any of its pixel arrays, the attached
+ * mask or the calibration change, when ImageJ updates the image (e.g., after
+ * Process&gt;Math, Fill or Undo) and while the image has unsaved changes.
+ * Virtual stacks are read from files that can change at any time, so their
+ * index is never cached. Code that modifies the pixels of the stack in place
+ * must call {@link #invalidate(ImagePlus)}.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class ActiveVoxels {
+
+    /** Name of the image property that holds the cached index. */
+    public static final String PROPERTY = "limtools.active";
+
+    // Drops the cached index when ImageJ updates or closes the image
+    private static ImageListener listener;
+
+    // What the index was built from, to detect stale copies
+    private final ImageStack stack;
+    private final Object[] planes;
+    private final VoxelMask mask;
+    private final double calzero;
+
+    private final int[][] offsets;
+    private final long count;
+    private final int max_count;
+
+    private ActiveVoxels(ImagePlus imp, TACEngine engine, int[][] offsets) {
+        this.stack = imp.getStack();
+        this.planes = stack.isVirtual() ? null
+                : Arrays.copyOf(stack.getImageArray(), stack.getSize());
+        this.mask = engine.getMask();
+        this.calzero = engine.getCalibratedZero();
+        this.offsets = offsets;
+        long n = 0;
+        int max = 0;
+        for (int[] o : offsets) {
+            n += o.length;
+            max = Math.max(max, o.length);
+        }
+        this.count = n;
+        this.max_count = max;
+    }
+
+    /**
+     * Returns the index of the given image, building it if there is no
+     * cached one or it is out of date.
+     * @param imp Dynamic image (HyperStack).
+     * @return The index.
+     */
+    public static synchronized ActiveVoxels get(ImagePlus imp) {
+        Object cached = imp.getProperty(PROPERTY);
+        if (cached instanceof ActiveVoxels
+                && ((ActiveVoxels) cached).isValid(imp))
+            return (ActiveVoxels) cached;
+        ActiveVoxels res = build(imp);
+        if (res.planes != null && !imp.changes) {
+            if (listener == null) {
+                listener = new ImageListener() {
+                    @Override
+                    public void imageOpened(ImagePlus imp) {
+                    }
+
+                    @Override
+                    public void imageClosed(ImagePlus imp) {
+                        invalidate(imp);
+                    }
+
+                    @Override
+                    public void imageUpdated(ImagePlus imp) {
+                        invalidate(imp);
+                    }
+                };
+                ImagePlus.addImageListener(listener);
+            }
+            imp.setProperty(PROPERTY, res);
+        } else {
+            imp.setProperty(PROPERTY, null);
+        }
+        return res;
+    }
+
+    /**
+     * Discards the cached index of an image. It must be called after
+     * modifying the pixels of the stack.
+     * @param imp Dynamic image.
+     */
+    public static synchronized void invalidate(ImagePlus imp) {
+        imp.setProperty(PROPERTY, null);
+    }
+
+    // Checks if the index still describes the image: same pixel arrays and
+    // no changes reported by ImageJ
+    private boolean isValid(ImagePlus imp) {
+        int[] dim = imp.getDimensions();
+        if (planes == null || imp.changes || stack != imp.getStack()
+                || mask != VoxelMask.get(imp) || offsets.length != dim[3]
+                || stack.getSize() != planes.length
+                || Double.compare(calzero,
+                                  CalibrationTable.get(imp).getZero()) != 0)
+            return false;
+        Object[] current = stack.getImageArray();
+        for (int i = 0; i < planes.length; i++)
+            if (current[i] != planes[i])
+                return false;
+        return true;
+    }
+
+    // Finds the active voxels, one slice per task
+    private static ActiveVoxels build(ImagePlus imp) {
+        final TACEngine engine = new TACEngine(imp);
+        final int n = engine.getSliceSize();
+        final int frames = engine.getFrames();
+        final double calzero = engine.getCalibratedZero();
+
+        List<int[]> list = SliceExecutor.run(engine.getSlices(),
+                new SliceTask<Scratch, int[]>() {
+            @Override
+            public Scratch createState() {
+                return new Scratch(n);
+            }
+
+            @Override
+            public int[] process(int slice, Scratch state) {
+                double[] frame = state.frame;
+                boolean[] nonzero = state.nonzero;
+                Arrays.fill(nonzero, false);
+                // Voxels outside the attached mask (if any) are never set
+                for (int f = 1; f <= frames; f++) {
+                    engine.readFrame(slice, f, frame);
+                    for (int i = engine.nextVoxel(slice, 0); i >= 0;
+                         i = engine.nextVoxel(slice, i + 1)) {
+                        if (frame[i] != calzero && frame[i] != 0.0)
+                            nonzero[i] = true;
+                    }
+                }
+                int count = 0;
+                for (int i = 0; i < n; i++)
+                    if (nonzero[i]) count++;
+                int[] res = new int[count];
+                for (int i = 0, k = 0; i < n; i++)
+                    if (nonzero[i]) res[k++] = i;
+                return res;
+            }
+        });
+        return new ActiveVoxels(imp, engine, list.toArray(new int[0][]));
+    }
+
+    /**
+     * @param slice Slice (1-based).
+     * @return Sorted offsets ({@code y * width + x}) of the active voxels of
+     * the slice. The array must not be modified.
+     */
+    public int[] getOffsets(int slice) {
+        return offsets[slice - 1];
+    }
+
+    /**
+     * @return Total number of active voxels.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Maximum number of active voxels in a single slice (useful to
+     * size the buffers).
+     */
+    public int getMaxCount() {
+        return max_count;
+    }
+
+    // Per-thread buffers
+    private static class Scratch {
+        final double[] frame;
+        final boolean[] nonzero;
+
+        Scratch(int n) {
+            frame = new double[n];
+            nonzero = new boolean[n];
+        }
+    }
+}
@@ -7,12 +7,29 @@ import ij.gui.GenericDialog;
 import ij.measure.Calibration;
 import ij.plugin.PlugIn;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import limtools.SliceExecutor.SliceTask;
+
 /**
  * This plugin creates a new image with the same spatial dimensions as the 
  * original one where each pixel value is the average of the original image
  * through the temporal dimension.
  * 
- * The created image will be a 32-bit image.
+ * Several frame windows (e.g., early, mid and late frames, or sliding windows)
+ * can be averaged at once, in a single pass over the frames: each window
+ * becomes a frame of the result. The average can be weighted by the duration
+ * of each frame (see {@link FrameTimes}).
+ * 
+ * Each frame is added once to a running (cumulative) sum of every voxel, and
+ * each window is the difference between the running sums at its last frame
+ * and just before its first one, so the cost does not depend on how many
+ * windows contain a frame. Only the running sums at the window starts that
+ * are still needed are kept.
+ * 
+ * The created image will be a 32-bit image that holds calibrated values.
  * 
  * @author José María Mateos - jmmateos@hggm.es
  *
@@ -38,10 +55,20 @@ public class Average_Frames implements PlugIn {
             choices[i] = (i + 1) + "";
         }
         
+        FrameTimes known = FrameTimes.fromImage(imp);
+        
         GenericDialog gd = new GenericDialog(
                                     "Choose first and last frame to average");
         gd.addChoice("First frame:", choices, "1");
         gd.addChoice("Last frame:", choices, lastframe + "");
+        gd.addMessage("Several windows (override the range above):");
+        gd.addStringField("Windows (e.g. 1-5,6-10):", "", 20);
+        gd.addNumericField("Sliding window width:", 0, 0);
+        gd.addNumericField("Sliding window step:", 1, 0);
+        gd.addCheckbox("Weight by frame duration", known != null);
+        gd.addStringField("Frame durations:", known == null ? "" 
+                          : known.formatDurations(), 30);
+        gd.addCheckbox("Remember the durations for the image", false);
         gd.showDialog();
         
         // If user canceled, return
@@ -49,45 +76,230 @@ public class Average_Frames implements PlugIn {
         
         initframe = Integer.parseInt(gd.getNextChoice());
         endframe = Integer.parseInt(gd.getNextChoice());
+        String spec = gd.getNextString().trim();
+        int width = (int) gd.getNextNumber();
+        int step = (int) gd.getNextNumber();
+        boolean weighted = gd.getNextBoolean();
+        String durations = gd.getNextString().trim();
+        boolean remember = gd.getNextBoolean();
+        
+        int [][] windows;
+        FrameTimes times = null;
+        try {
+            if (!spec.isEmpty())
+                windows = parseWindows(spec, lastframe);
+            else if (width > 0)
+                windows = slidingWindows(lastframe, width, step);
+            else
+                windows = parseWindows(initframe + "-" + endframe, lastframe);
+            
+            if (weighted) {
+                if (durations.isEmpty())
+                    throw new IllegalArgumentException(
+                            "Frame durations are needed for the weighting");
+                // Keep the attached timing (and its start) if unchanged
+                if (known != null 
+                        && durations.equals(known.formatDurations()))
+                    times = known;
+                else
+                    times = FrameTimes.parse(durations, lastframe);
+                if (remember)
+                    times.attach(imp);
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        
+        average(imp, windows, times).show();
+    }
+
+    /**
+     * Parses a list of frame windows, such as {@code "1-5,6-10,11-20"} or
+     * {@code "1-3,2-4,3"}.
+     * @param spec The window list.
+     * @param frames Number of frames of the image.
+     * @return The first and last frame (1-based, inclusive) of each window.
+     * @throws IllegalArgumentException if the list is not valid.
+     */
+    public static int [][] parseWindows(String spec, int frames) {
+        List<int[]> windows = new ArrayList<int[]>();
+        try {
+            for (String token : spec.split(",")) {
+                token = token.trim();
+                int dash = token.indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? token : 
+                                             token.substring(0, dash).trim());
+                int last = dash < 0 ? first : Integer.parseInt(
+                                             token.substring(dash + 1).trim());
+                if (first < 1 || last > frames || first > last)
+                    throw new IllegalArgumentException(
+                            "Wrong frame window: " + token);
+                windows.add(new int[] {first, last});
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong window list: " + spec);
+        }
+        return windows.toArray(new int[windows.size()][]);
+    }
+    
+    /**
+     * Builds sliding windows of a fixed width.
+     * @param frames Number of frames of the image.
+     * @param width Frames in each window.
+     * @param step Distance between the first frames of two windows.
+     * @return The first and last frame (1-based, inclusive) of each window.
+     * @throws IllegalArgumentException if the parameters are not valid.
+     */
+    public static int [][] slidingWindows(int frames, int width, int step) {
+        if (width < 1 || width > frames || step < 1)
+            throw new IllegalArgumentException("Wrong sliding window");
+        int [][] windows = new int[(frames - width) / step + 1][];
+        for (int w = 0; w < windows.length; w++)
+            windows[w] = new int[] {w * step + 1, w * step + width};
+        return windows;
+    }
+
+    /**
+     * Averages the given range of frames of a dynamic image.
+     * @param imp Dynamic image (HyperStack).
+     * @param initframe First frame to average (1-based).
+     * @param endframe Last frame to average (1-based, inclusive).
+     * @return A new 32-bit image with the average of each voxel.
+     */
+    public static ImagePlus average(ImagePlus imp, int initframe, 
+                                    int endframe) {
+        return average(imp, new int[][] {{initframe, endframe}}, null);
+    }
+    
+    /**
+     * Averages several frame windows of a dynamic image in a single pass:
+     * each frame is read and added to the running sums once.
+     * @param imp Dynamic image (HyperStack).
+     * @param windows First and last frame (1-based, inclusive) of each
+     * window.
+     * @param times Frame durations used as weights, or {@code null} for the
+     * plain mean.
+     * @return A new 32-bit image with one frame per window.
+     */
+    public static ImagePlus average(ImagePlus imp, final int [][] windows,
+                                    FrameTimes times) {
+        
+        int [] dim = imp.getDimensions();
+        final int W = windows.length;
         
         // Create result image        
         String src_title = imp.getTitle();
-        String res_title = src_title + String.format(" (average %d - %d)", 
-                                                     initframe, endframe);
+        String res_title = W == 1 ? src_title + String.format(
+                " (average %d - %d)", windows[0][0], windows[0][1])
+                : src_title + " (averages)";
         ImagePlus result = IJ.createImage(res_title, "32-bit", dim[0], dim[1], 
-                                          1, dim[3], 1);
+                                          1, dim[3], W);
+        
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        result.setCalibration(cal);
+        
+        // Weight of each frame and total weight of each window
+        final double [] weight = new double[dim[4]];
+        final double [] total = new double[W];
+        int first = dim[4], last = 1;
+        for (int f = 0; f < dim[4]; f++)
+            weight[f] = times == null ? 1.0 : times.getDuration(f);
+        for (int w = 0; w < W; w++) {
+            for (int f = windows[w][0]; f <= windows[w][1]; f++)
+                total[w] += weight[f - 1];
+            first = Math.min(first, windows[w][0]);
+            last = Math.max(last, windows[w][1]);
+        }
+        final int first_frame = first, last_frame = last;
+        
+        // Running sums to keep: the one after frame b is needed from b
+        // until the last window that starts at b + 1 ends. Each of them is
+        // given a buffer (slot), reused once it is no longer needed.
+        int [] needed = new int[dim[4] + 1];
+        for (int w = 0; w < W; w++)
+            needed[windows[w][0] - 1] = Math.max(
+                    needed[windows[w][0] - 1], windows[w][1]);
+        final int [] snapshot = new int[dim[4] + 1];
+        Arrays.fill(snapshot, -1);
+        List<Integer> free = new ArrayList<Integer>();
+        int slots = 0;
+        for (int f = first_frame; f <= last_frame; f++) {
+            for (int b = first_frame; b < f; b++)
+                if (needed[b] == f)
+                    free.add(snapshot[b]);
+            if (needed[f] > f)
+                snapshot[f] = free.isEmpty() ? slots++
+                                             : free.remove(free.size() - 1);
+        }
+        final int buffers = slots;
+        
+        // Windows that end at each frame, and slot of the running sum
+        // before their first frame (-1 if it is 0)
+        final int [][] ending = new int[dim[4] + 1][];
+        final int [] start = new int[W];
+        int [] count = new int[dim[4] + 1];
+        for (int w = 0; w < W; w++)
+            count[windows[w][1]]++;
+        for (int f = 0; f <= dim[4]; f++)
+            ending[f] = new int[count[f]];
+        for (int w = 0; w < W; w++) {
+            ending[windows[w][1]][--count[windows[w][1]]] = w;
+            start[w] = snapshot[windows[w][0] - 1];
+        }
         
         // Compute the mean frame value and set on the original image
-        ImageStack source = imp.getStack();
-        ImageStack target = result.getStack();    
-        Calibration cal = imp.getCalibration();
-        result.setCalibration(cal); // FIXME: values are not calibrated        
-        double [] values = new double[endframe - initframe + 1];
-        
-        for (int z = 0; z < dim[3]; z++) {
-            // Update progress bar indicator
-            IJ.showProgress(z, dim[3]);
-            for (int x = 0; x < dim[0]; x++) {
-                for (int y = 0; y < dim[1]; y++) {
-                    for (int f = initframe; f <= endframe; f++) {
-                        int stackindex = imp.getStackIndex(1, z + 1, f); 
-                        values[f - initframe] = cal.getCValue(
-                                                 source.getVoxel(x, y, 
-                                                               stackindex - 1));
-                    } // end f
-                    target.setVoxel(x, y, z, _mean(values));                    
-                } // end y
-            } // end x
-        } // end z        
-        
-        result.show();
-    }
+        final TACEngine engine = new TACEngine(imp);
+        final ImageStack target = result.getStack();    
+        final int n = engine.getSliceSize();
+        final int slices = dim[3];
+        
+        SliceExecutor.run(slices, new SliceTask<double[][], Void>() {
+            @Override
+            public double[][] createState() {
+                // Frame buffer, running sum and the kept running sums
+                return new double[buffers + 2][n];
+            }
 
-    private double _mean(double [] values) {
-        double result = 0.0;
-        for (double d : values) result += d;        
-        return result / values.length;
+            @Override
+            public Void process(int slice, double[][] state) {
+                double [] frame = state[buffers];
+                double [] sum = state[buffers + 1];
+                Arrays.fill(sum, 0.0);
+                for (int f = first_frame; f <= last_frame; f++) {
+                    engine.readFrame(slice, f, frame);
+                    double wf = weight[f - 1];
+                    for (int i = engine.nextVoxel(slice, 0); i >= 0;
+                         i = engine.nextVoxel(slice, i + 1))
+                        sum[i] += wf * frame[i];
+                    for (int w : ending[f]) {
+                        // Stack index of slice and window (frame) w + 1
+                        float [] pixels = (float []) target.getPixels(
+                                w * slices + slice);
+                        double [] before = start[w] < 0 ? null
+                                                        : state[start[w]];
+                        // Voxels outside the attached mask (if any) are
+                        // left at 0
+                        for (int i = engine.nextVoxel(slice, 0); i >= 0;
+                             i = engine.nextVoxel(slice, i + 1))
+                            pixels[i] = (float) ((before == null ? sum[i]
+                                    : sum[i] - before[i]) / total[w]);
+                    }
+                    if (snapshot[f] >= 0)
+                        System.arraycopy(sum, 0, state[snapshot[f]], 0, n);
+                } // end f
+                return null;
+            }
+        });
+        
+        for (int w = 0; w < W; w++)
+            for (int z = 1; z <= slices; z++)
+                target.setSliceLabel(String.format("frames %d-%d", 
+                        windows[w][0], windows[w][1]), w * slices + z);
+        
+        return result;
     }
 
-
 }
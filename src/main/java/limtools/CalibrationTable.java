@@ -0,0 +1,138 @@
+package limtools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Precomputed density calibration of an image, shared by all the plugins
+ * instead of calling {@link Calibration#getCValue(double)} for every sample.
+ * 8 and 16-bit images get a lookup table with the calibrated value of every
+ * possible raw value; 32-bit images calibrated with a straight line use its
+ * coefficients directly.
+ * </p>
+ *
+ * <p>
+ * The table is cached in an image property and rebuilt when the calibration
+ * function, its coefficients or the bit depth of the image change.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class CalibrationTable {
+
+    /** Name of the image property that holds the cached table. */
+    public static final String PROPERTY = "limtools.calibration";
+
+    // What the table was built from, to detect stale copies
+    private final Calibration cal;
+    private final int function, bitDepth;
+    private final double[] coefficients;
+
+    private final boolean identity, linear;
+    private final double intercept, slope, zero;
+    // Calibrated value for each raw value (8 and 16-bit images only), or
+    // null when the calibration function is the identity
+    private final double[] table;
+
+    private CalibrationTable(Calibration cal, int bitDepth) {
+        this.cal = cal;
+        this.function = cal.getFunction();
+        this.bitDepth = bitDepth;
+        double[] c = cal.getCoefficients();
+        this.coefficients = c == null ? null : c.clone();
+        this.identity = function == Calibration.NONE;
+        this.linear = function == Calibration.STRAIGHT_LINE
+                      && coefficients != null && coefficients.length >= 2;
+        this.intercept = linear ? coefficients[0] : 0.0;
+        this.slope = linear ? coefficients[1] : 1.0;
+        this.zero = cal.getCValue(0.0);
+
+        if (!identity && (bitDepth == 8 || bitDepth == 16)) {
+            table = new double[bitDepth == 8 ? 256 : 65536];
+            for (int i = 0; i < table.length; i++)
+                table[i] = cal.getCValue(i);
+        } else {
+            table = null;
+        }
+    }
+
+    /**
+     * Returns the table of the given image, building it if there is no
+     * cached one or it is out of date.
+     * @param imp Image.
+     * @return The table.
+     */
+    public static synchronized CalibrationTable get(ImagePlus imp) {
+        Calibration cal = imp.getCalibration();
+        Object cached = imp.getProperty(PROPERTY);
+        if (cached instanceof CalibrationTable
+                && ((CalibrationTable) cached).isValid(cal,
+                                                       imp.getBitDepth()))
+            return (CalibrationTable) cached;
+        CalibrationTable res = new CalibrationTable(cal, imp.getBitDepth());
+        imp.setProperty(PROPERTY, res);
+        return res;
+    }
+
+    // Checks if the table still describes the calibration
+    private boolean isValid(Calibration cal, int bitDepth) {
+        return cal == this.cal && cal.getFunction() == function
+                && bitDepth == this.bitDepth
+                && Arrays.equals(cal.getCoefficients(), coefficients);
+    }
+
+    /**
+     * @return {@code true} if the calibrated values are the raw values.
+     */
+    public boolean isIdentity() {
+        return identity;
+    }
+
+    /**
+     * @return The calibrated value of each raw value (indexed by the
+     * unsigned raw value) for 8 and 16-bit images, or {@code null} if the
+     * image is not calibrated or has another bit depth. It must not be
+     * modified.
+     */
+    public double[] getTable() {
+        return table;
+    }
+
+    /**
+     * @return The calibrated 0 value, used to tell masked voxels.
+     */
+    public double getZero() {
+        return zero;
+    }
+
+    /**
+     * @param raw Raw value.
+     * @return The calibrated value.
+     */
+    public double getCValue(double raw) {
+        if (identity)
+            return raw;
+        if (table != null && raw >= 0 && raw < table.length
+                && raw == (int) raw)
+            return table[(int) raw];
+        if (linear)
+            return intercept + slope * raw;
+        return cal.getCValue(raw);
+    }
+
+    /**
+     * @param raw Raw value of a 32-bit image.
+     * @return The calibrated value.
+     */
+    public double getFloatCValue(float raw) {
+        if (identity)
+            return raw;
+        if (linear)
+            return intercept + slope * raw;
+        return cal.getCValue(raw);
+    }
+}
@@ -0,0 +1,467 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import limtools.Normalize_Dynamic.Normalizer;
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * This plugin segments a dynamic image by kinetic behaviour: every unmasked
+ * voxel TAC is assigned to one of k clusters with the k-means algorithm. The
+ * TACs can be normalized first (with any of the modes of
+ * {@link Normalize_Dynamic}), so the clusters group curve shapes instead of
+ * amplitudes.
+ * </p>
+ *
+ * <p>
+ * The initial centroids are chosen with k-means++ on a random sample of the
+ * TACs and refined on that sample. Each iteration over the whole image then
+ * reads one slice at a time, assigns its TACs to the nearest centroid and
+ * accumulates their sums, which are merged in slice order so the result does
+ * not depend on the number of threads. The iterations stop when the fraction
+ * of voxels that change cluster falls below a tolerance.
+ * </p>
+ *
+ * <p>
+ * The result is a label image (clusters numbered by increasing mean of their
+ * centroid, 0 for masked voxels) and a table with the mean TAC of each
+ * cluster, as in {@link Label_Time_Activity}, so any cluster can be used as
+ * a reference TAC.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Cluster_TACs implements PlugIn {
+
+    /** No normalization (see {@link Normalize_Dynamic} for the others). */
+    public static final int NONE = -1;
+
+    private static final String[] NORMALIZATIONS = {"None", "Maximum",
+                                                    "Area under the curve",
+                                                    "Mean", "Reference TAC",
+                                                    "Z-score"};
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Cluster TACs");
+        gd.addNumericField("Clusters:", 5, 0);
+        gd.addChoice("Normalization:", NORMALIZATIONS, NORMALIZATIONS[0]);
+        gd.addNumericField("Maximum iterations:", 100, 0);
+        gd.addNumericField("Stop when changes below (%):", 0.1, 2);
+        gd.addNumericField("Voxels sampled for seeding:", 10000, 0);
+        gd.addNumericField("Random seed:", 1, 0);
+        gd.addMessage("Reference TAC (Activity column of the Results table,\n"
+                      + "or a comma-separated list of values):");
+        gd.addNumericField("Label (for Label Time Activity):", 1, 0);
+        gd.addStringField("Values:", "", 30);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int k = (int) gd.getNextNumber();
+        int mode = gd.getNextChoiceIndex() - 1;
+        int iterations = (int) gd.getNextNumber();
+        double tolerance = gd.getNextNumber() / 100.0;
+        int sample = (int) gd.getNextNumber();
+        long seed = (long) gd.getNextNumber();
+        int label = (int) gd.getNextNumber();
+        String values = gd.getNextString().trim();
+
+        Result res;
+        TACStatistics stats;
+        try {
+            double [] reference = null;
+            if (mode == Normalize_Dynamic.REFERENCE)
+                reference = values.isEmpty()
+                        ? Utils.readTAC(Analyzer.getResultsTable(), label,
+                                        dim[4])
+                        : Utils.parseTAC(values, dim[4]);
+            res = cluster(imp, k, mode, reference, iterations, tolerance,
+                          sample, seed);
+            stats = Label_Time_Activity.measure(imp, res.getLabels());
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        res.getLabels().show();
+
+        // One row per cluster and frame, as in Label Time Activity
+        double [][] centroids = res.getCentroids();
+        ResultsTable rt = Analyzer.getResultsTable();
+        for (int c = 1; c <= k; c++) {
+            if (c >= stats.getGroups() || stats.getCount(c) == 0) continue;
+            for (int i = 0; i < dim[4]; i++) {
+                rt.incrementCounter();
+                rt.addValue("Label", c);
+                rt.addValue("Frame", i + 1);
+                rt.addValue("Activity", stats.getMean(c, i));
+                rt.addValue("SD", stats.getSD(c, i));
+                rt.addValue("Voxels", stats.getCount(c));
+                if (mode != NONE)
+                    rt.addValue("Centroid", centroids[c - 1][i]);
+            }
+        }
+        rt.showRowNumbers(false);
+        rt.show("Results");
+        IJ.showStatus("Cluster TACs: " + res.getIterations()
+                      + " iterations");
+    }
+
+    /**
+     * Clusters the unmasked TACs of a dynamic image with k-means.
+     * @param imp Dynamic image (HyperStack).
+     * @param k Number of clusters (2 to 255).
+     * @param mode {@link #NONE} or a normalization mode of
+     * {@link Normalize_Dynamic}, applied to each TAC before clustering.
+     * @param reference Reference TAC for {@link Normalize_Dynamic#REFERENCE},
+     * ignored otherwise.
+     * @param iterations Maximum number of iterations over the whole image.
+     * @param tolerance Stop when the fraction of voxels that change cluster
+     * in an iteration is not greater than this value.
+     * @param sample Number of TACs (approximately) used to seed the
+     * centroids.
+     * @param seed Seed of the random sampling, so runs can be repeated.
+     * @return The 8-bit label image and the centroids.
+     * @throws IllegalArgumentException if the parameters are not valid or
+     * there are not enough voxels.
+     */
+    public static Result cluster(ImagePlus imp, final int k, int mode,
+                                 double [] reference, int iterations,
+                                 double tolerance, int sample,
+                                 final long seed) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        if (k < 2 || k > 255)
+            throw new IllegalArgumentException(
+                    "The number of clusters must be between 2 and 255");
+        if (iterations < 1)
+            throw new IllegalArgumentException(
+                    "At least one iteration is needed");
+        final Normalizer normalizer = mode == NONE ? null
+                : new Normalizer(imp, mode, reference);
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        long total = active.getCount();
+        if (total < k)
+            throw new IllegalArgumentException("Not enough unmasked voxels");
+
+        // Random sample of the (normalized) TACs. Each slice has its own
+        // generator, so the sample does not depend on the threads either
+        final double p = Math.min(1.0, Math.max(sample, k) / (double) total);
+        List<double[]> parts = SliceExecutor.run(dim[3],
+                new SliceTask<double[], double[]>() {
+            @Override
+            public double[] createState() {
+                return engine.createVoxelBuffer(active.getMaxCount());
+            }
+
+            @Override
+            public double[] process(int slice, double[] buffer) {
+                int [] offsets = active.getOffsets(slice);
+                Random random = new Random(seed * 31 + slice);
+                engine.readVoxels(slice, offsets, buffer);
+                int n = 0;
+                for (int offset = 0; offset < offsets.length * frames;
+                     offset += frames) {
+                    if (random.nextDouble() >= p) continue;
+                    if (normalizer != null)
+                        normalizer.apply(buffer, offset);
+                    if (!_isFinite(buffer, offset, frames)) continue;
+                    System.arraycopy(buffer, offset, buffer, n, frames);
+                    n += frames;
+                }
+                return Arrays.copyOf(buffer, n);
+            }
+        });
+        int length = 0;
+        for (double [] part : parts)
+            length += part.length;
+        double [] data = new double[length];
+        length = 0;
+        for (double [] part : parts) {
+            System.arraycopy(part, 0, data, length, part.length);
+            length += part.length;
+        }
+        if (data.length < k * frames)
+            throw new IllegalArgumentException("Not enough voxels to seed "
+                                               + k + " clusters");
+
+        // k-means++ seeding and refinement on the sample
+        final double [][] centroids = _seed(data, k, frames,
+                                            new Random(seed));
+        int [] assigned = new int[data.length / frames];
+        Arrays.fill(assigned, -1);
+        for (int it = 0; it < iterations; it++) {
+            Sums sums = new Sums(k, frames);
+            int changed = 0;
+            for (int i = 0, offset = 0; i < assigned.length;
+                 i++, offset += frames) {
+                int c = _nearest(data, offset, centroids, frames);
+                if (c != assigned[i]) changed++;
+                assigned[i] = c;
+                sums.add(c, data, offset);
+            }
+            sums.update(centroids);
+            if (changed <= tolerance * assigned.length) break;
+        }
+        data = null;
+
+        // Label image, rewritten in every iteration
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        ImagePlus labels = IJ.createImage(imp.getTitle() + " (clusters)",
+                                          "8-bit", dim[0], dim[1], 1, dim[3],
+                                          1);
+        labels.setCalibration(cal);
+        final ImageStack label_stack = labels.getStack();
+
+        int iteration = 0;
+        while (iteration < iterations) {
+            iteration++;
+            IJ.showStatus("Cluster TACs: iteration " + iteration);
+            final Sums sums = new Sums(k, frames);
+            SliceExecutor.reduce(dim[3], new SliceTask<double[], Sums>() {
+                @Override
+                public double[] createState() {
+                    return engine.createVoxelBuffer(active.getMaxCount());
+                }
+
+                @Override
+                public Sums process(int slice, double[] buffer) {
+                    int [] offsets = active.getOffsets(slice);
+                    byte [] l = (byte []) label_stack.getPixels(slice);
+                    Sums partial = new Sums(k, frames);
+                    engine.readVoxels(slice, offsets, buffer);
+                    for (int j = 0, offset = 0; j < offsets.length;
+                         j++, offset += frames) {
+                        if (normalizer != null)
+                            normalizer.apply(buffer, offset);
+                        // Curves that cannot be normalized are left out
+                        int c = _nearest(buffer, offset, centroids, frames);
+                        int previous = (l[offsets[j]] & 0xff) - 1;
+                        if (c != previous) partial.changed++;
+                        l[offsets[j]] = (byte) (c + 1);
+                        if (c >= 0)
+                            partial.add(c, buffer, offset);
+                    }
+                    return partial;
+                }
+            }, new Reducer<Sums>() {
+                @Override
+                public void reduce(int slice, Sums partial) {
+                    sums.merge(partial);
+                }
+            });
+            sums.update(centroids);
+            if (sums.changed <= tolerance * total) break;
+        }
+
+        // Number the clusters by increasing centroid mean
+        Integer [] order = new Integer[k];
+        final double [] means = new double[k];
+        for (int c = 0; c < k; c++) {
+            order[c] = c;
+            for (int f = 0; f < frames; f++)
+                means[c] += centroids[c][f];
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(means[a], means[b]);
+            }
+        });
+        byte [] lut = new byte[256];
+        double [][] sorted = new double[k][];
+        for (int c = 0; c < k; c++) {
+            lut[order[c] + 1] = (byte) (c + 1);
+            sorted[c] = centroids[order[c]];
+        }
+        for (int slice = 1; slice <= dim[3]; slice++) {
+            byte [] l = (byte []) label_stack.getPixels(slice);
+            for (int i = 0; i < l.length; i++)
+                l[i] = lut[l[i] & 0xff];
+        }
+        labels.setDisplayRange(0, k);
+
+        return new Result(labels, sorted, iteration);
+    }
+
+    // k-means++: each new centroid is drawn with probability proportional
+    // to the squared distance to the nearest centroid already chosen
+    private static double[][] _seed(double [] data, int k, int frames,
+                                    Random random) {
+        int n = data.length / frames;
+        double [][] centroids = new double[k][];
+        double [] d2 = new double[n];
+        Arrays.fill(d2, Double.POSITIVE_INFINITY);
+        int chosen = random.nextInt(n);
+        for (int c = 0; c < k; c++) {
+            centroids[c] = Arrays.copyOfRange(data, chosen * frames,
+                                              (chosen + 1) * frames);
+            if (c == k - 1) break;
+            double sum = 0.0;
+            for (int i = 0, offset = 0; i < n; i++, offset += frames) {
+                double d = _distance(data, offset, centroids[c], frames,
+                                     d2[i]);
+                if (d < d2[i]) d2[i] = d;
+                sum += d2[i];
+            }
+            if (sum > 0.0) {
+                double r = random.nextDouble() * sum;
+                chosen = n - 1;
+                for (int i = 0; i < n; i++) {
+                    r -= d2[i];
+                    if (r < 0.0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+            } else {
+                // Every TAC is already a centroid
+                chosen = random.nextInt(n);
+            }
+        }
+        return centroids;
+    }
+
+    // Index of the nearest centroid, or -1 if the TAC is not finite
+    private static int _nearest(double [] buffer, int offset,
+                                double [][] centroids, int frames) {
+        int best = -1;
+        double min = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids.length; c++) {
+            double d = _distance(buffer, offset, centroids[c], frames, min);
+            if (d < min) {
+                min = d;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    // Squared Euclidean distance. It stops as soon as it exceeds the bound,
+    // since the TAC is then closer to another centroid
+    private static double _distance(double [] buffer, int offset,
+                                    double [] centroid, int frames,
+                                    double bound) {
+        double d = 0.0;
+        for (int f = 0; f < frames && d < bound; f++) {
+            double diff = buffer[offset + f] - centroid[f];
+            d += diff * diff;
+        }
+        return d;
+    }
+
+    private static boolean _isFinite(double [] buffer, int offset,
+                                     int frames) {
+        for (int i = offset; i < offset + frames; i++)
+            if (Double.isNaN(buffer[i]) || Double.isInfinite(buffer[i]))
+                return false;
+        return true;
+    }
+
+    /**
+     * Result of {@link Cluster_TACs#cluster}.
+     */
+    public static class Result {
+
+        private final ImagePlus labels;
+        private final double [][] centroids;
+        private final int iterations;
+
+        Result(ImagePlus labels, double [][] centroids, int iterations) {
+            this.labels = labels;
+            this.centroids = centroids;
+            this.iterations = iterations;
+        }
+
+        /**
+         * @return 8-bit image with the cluster (1 to k) of each voxel, or 0
+         * for masked voxels and TACs that could not be normalized.
+         */
+        public ImagePlus getLabels() {
+            return labels;
+        }
+
+        /**
+         * @return The centroid of each cluster (index {@code l - 1} holds
+         * label {@code l}), in the normalized space.
+         */
+        public double[][] getCentroids() {
+            return centroids;
+        }
+
+        /**
+         * @return Number of iterations over the whole image.
+         */
+        public int getIterations() {
+            return iterations;
+        }
+    }
+
+    // Sum and number of the TACs of each cluster, plus the number of voxels
+    // that changed cluster
+    private static class Sums {
+        final double [][] sum;
+        final long [] count;
+        long changed;
+
+        Sums(int k, int frames) {
+            sum = new double[k][frames];
+            count = new long[k];
+        }
+
+        void add(int c, double [] buffer, int offset) {
+            double [] s = sum[c];
+            for (int f = 0; f < s.length; f++)
+                s[f] += buffer[offset + f];
+            count[c]++;
+        }
+
+        void merge(Sums other) {
+            for (int c = 0; c < sum.length; c++) {
+                for (int f = 0; f < sum[c].length; f++)
+                    sum[c][f] += other.sum[c][f];
+                count[c] += other.count[c];
+            }
+            changed += other.changed;
+        }
+
+        // Empty clusters keep their previous centroid
+        void update(double [][] centroids) {
+            for (int c = 0; c < sum.length; c++)
+                if (count[c] > 0)
+                    for (int f = 0; f < sum[c].length; f++)
+                        centroids[c][f] = sum[c][f] / count[c];
+        }
+    }
+}
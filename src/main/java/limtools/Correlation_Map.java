@@ -0,0 +1,287 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import java.util.Arrays;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * This plugin computes, for every unmasked voxel of a dynamic image, the
+ * Pearson correlation coefficient between its TAC and a reference TAC (e.g.,
+ * the mean TAC of a region measured with {@link Measure_Time_Activity} or
+ * {@link Label_Time_Activity}), so the voxels that behave like the region
+ * stand out.
+ * </p>
+ *
+ * <p>
+ * Optionally, the normalized cross-correlation is also computed for lags of
+ * up to a given number of frames: at lag {@code l}, frame {@code f} of the
+ * voxel is paired with frame {@code f - l} of the reference, over the frames
+ * where both exist. The maximum over the lags and the lag where it is
+ * reached are then returned as well.
+ * </p>
+ *
+ * <p>
+ * Every coefficient is computed from running sums (of the voxel TAC shifted
+ * by its first value, and of the centred reference) updated in a single pass
+ * over the frames of each slice, reading the primitive frame arrays through
+ * {@link TACEngine}; the sums are kept in per-thread arrays, so nothing is
+ * allocated per voxel. The maps are 32-bit images; masked voxels are set to
+ * 0 and voxels with a flat TAC to NaN.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Correlation_Map implements PlugIn {
+
+    /** Index of each map in the result of {@link #correlate}. */
+    public static final int PEARSON = 0, MAX_NCC = 1, LAG = 2;
+
+    private static final String[] MAPS = {"correlation", "max NCC", "lag"};
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Correlation map");
+        gd.addMessage("Reference TAC (Activity column of the Results table,\n"
+                      + "or a comma-separated list of values):");
+        gd.addNumericField("Label (for Label Time Activity):", 1, 0);
+        gd.addStringField("Values:", "", 30);
+        gd.addNumericField("Maximum lag (frames):", 0, 0);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int label = (int) gd.getNextNumber();
+        String values = gd.getNextString().trim();
+        int lag = (int) gd.getNextNumber();
+
+        ImagePlus [] maps;
+        try {
+            double [] reference = values.isEmpty()
+                    ? Utils.readTAC(Analyzer.getResultsTable(), label, dim[4])
+                    : Utils.parseTAC(values, dim[4]);
+            maps = correlate(imp, reference, lag);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        for (ImagePlus map : maps)
+            map.show();
+    }
+
+    /**
+     * Computes the correlation maps of every unmasked voxel against a
+     * reference TAC.
+     * @param imp Dynamic image (HyperStack).
+     * @param reference Reference TAC, one value per frame.
+     * @param maxLag Maximum lag, in frames (0 for the Pearson map only).
+     * @return The 32-bit maps, indexed by {@link #PEARSON} and, if
+     * {@code maxLag > 0}, {@link #MAX_NCC} and {@link #LAG} (in frames;
+     * positive when the voxel lags behind the reference).
+     * @throws IllegalArgumentException if the parameters are not valid.
+     */
+    public static ImagePlus[] correlate(ImagePlus imp, double [] reference,
+                                        int maxLag) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        if (reference.length != frames)
+            throw new IllegalArgumentException(
+                    "The number of frames does not agree");
+        if (maxLag < 0 || frames - maxLag < 3)
+            throw new IllegalArgumentException(
+                    "The maximum lag must leave at least 3 frames");
+        final int lags = 2 * maxLag + 1;
+        final int L = maxLag;
+
+        // The coefficients do not change when a constant is subtracted from
+        // either TAC. The reference is centred on its mean here, and each
+        // voxel is shifted by its first frame below, so the sums of squares
+        // and products do not cancel when the values are large compared
+        // with their variation
+        double mean = 0.0;
+        for (double v : reference)
+            mean += v / frames;
+        final double [] ref = new double[frames];
+        for (int f = 0; f < frames; f++)
+            ref[f] = reference[f] - mean;
+
+        // Reference terms of each lag (index l + L), over the frames where
+        // the reference and the voxel overlap
+        final int [] n = new int[lags];
+        final double [] sr = new double[lags];
+        final double [] srr = new double[lags];
+        for (int l = -L; l <= L; l++)
+            for (int f = Math.max(0, l); f < Math.min(frames, frames + l);
+                 f++) {
+                double r = ref[f - l];
+                n[l + L]++;
+                sr[l + L] += r;
+                srr[l + L] += r * r;
+            }
+        if (srr[L] * n[L] - sr[L] * sr[L] <= 0.0)
+            throw new IllegalArgumentException(
+                    "The reference TAC cannot be flat");
+
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        int count = L > 0 ? MAPS.length : 1;
+        final ImageStack [] targets = new ImageStack[count];
+        ImagePlus [] res = new ImagePlus[count];
+        for (int p = 0; p < count; p++) {
+            res[p] = IJ.createImage(imp.getTitle() + " (" + MAPS[p] + ")",
+                                    "32-bit", dim[0], dim[1], 1, dim[3], 1);
+            res[p].setCalibration(cal);
+            targets[p] = res[p].getStack();
+        }
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        final int size = engine.getSliceSize();
+
+        SliceExecutor.run(dim[3], new SliceTask<Sums, Void>() {
+            @Override
+            public Sums createState() {
+                return new Sums(size, active.getMaxCount(), L);
+            }
+
+            @Override
+            public Void process(int slice, Sums s) {
+                int [] offsets = active.getOffsets(slice);
+                int count = offsets.length;
+                s.clear(count);
+                int H = L + 1;
+
+                for (int f = 0; f < frames; f++) {
+                    engine.readFrame(slice, f + 1, s.frame);
+                    // Lags for which this frame of the voxel has a partner
+                    int l0 = Math.max(-L, f - frames + 1);
+                    int l1 = Math.min(L, f);
+                    for (int k = 0; k < count; k++) {
+                        double x = s.frame[offsets[k]];
+                        if (f == 0)
+                            s.shift[k] = x;
+                        x -= s.shift[k];
+                        double sx = s.sx[k] += x;
+                        double sxx = s.sxx[k] += x * x;
+                        int base = k * H;
+                        // Sums of the first and last frames, to get the sums
+                        // over the overlap of each lag
+                        if (f + 1 <= L) {
+                            s.headx[base + f + 1] = sx;
+                            s.headxx[base + f + 1] = sxx;
+                        }
+                        if (f + 1 >= frames - L) {
+                            s.tailx[base + frames - f - 1] = sx;
+                            s.tailxx[base + frames - f - 1] = sxx;
+                        }
+                        int b = k * lags + L;
+                        for (int l = l0; l <= l1; l++)
+                            s.sxy[b + l] += x * ref[f - l];
+                    }
+                }
+
+                float [] pearson = (float []) targets[PEARSON]
+                                                     .getPixels(slice);
+                float [] best = L > 0 ? (float []) targets[MAX_NCC]
+                                                          .getPixels(slice)
+                                      : null;
+                float [] at = L > 0 ? (float []) targets[LAG].getPixels(slice)
+                                    : null;
+                for (int k = 0; k < count; k++) {
+                    int i = offsets[k];
+                    int base = k * H;
+                    double max = Double.NEGATIVE_INFINITY;
+                    int lag = 0;
+                    for (int l = -L; l <= L; l++) {
+                        // Sums of the voxel over the frames paired at lag l
+                        double sx, sxx;
+                        if (l >= 0) {
+                            sx = s.sx[k] - s.headx[base + l];
+                            sxx = s.sxx[k] - s.headxx[base + l];
+                        } else {
+                            sx = s.tailx[base - l];
+                            sxx = s.tailxx[base - l];
+                        }
+                        int j = l + L;
+                        double m = n[j];
+                        double cov = m * s.sxy[k * lags + j] - sx * sr[j];
+                        double vx = m * sxx - sx * sx;
+                        double vr = m * srr[j] - sr[j] * sr[j];
+                        double r = vx > 0.0 && vr > 0.0
+                                ? cov / Math.sqrt(vx * vr) : Double.NaN;
+                        if (l == 0)
+                            pearson[i] = (float) r;
+                        if (r > max) {
+                            max = r;
+                            lag = l;
+                        }
+                    }
+                    if (best != null) {
+                        best[i] = max == Double.NEGATIVE_INFINITY
+                                ? Float.NaN : (float) max;
+                        at[i] = max == Double.NEGATIVE_INFINITY
+                                ? Float.NaN : lag;
+                    }
+                }
+                return null;
+            }
+        });
+
+        return res;
+    }
+
+    // Per-thread frame buffer, first value of each TAC and running sums, in
+    // flat arrays indexed by voxel (and lag, or number of frames at the start and end of the TAC)
+    private static class Sums {
+        final double [] frame;
+        final double [] shift, sx, sxx;
+        final double [] headx, headxx, tailx, tailxx;
+        final double [] sxy;
+        final int lags;
+
+        Sums(int size, int voxels, int maxLag) {
+            frame = new double[size];
+            shift = new double[voxels];
+            sx = new double[voxels];
+            sxx = new double[voxels];
+            lags = 2 * maxLag + 1;
+            headx = new double[voxels * (maxLag + 1)];
+            headxx = new double[voxels * (maxLag + 1)];
+            tailx = new double[voxels * (maxLag + 1)];
+            tailxx = new double[voxels * (maxLag + 1)];
+            sxy = new double[voxels * lags];
+        }
+
+        void clear(int count) {
+            Arrays.fill(sx, 0, count, 0.0);
+            Arrays.fill(sxx, 0, count, 0.0);
+            Arrays.fill(sxy, 0, count * lags, 0.0);
+            // The shift, head and tail sums are always overwritten (the sum of
+            // the first 0 frames is never written and stays 0)
+        }
+    }
+
+}
@@ -1,7 +1,9 @@
 package limtools;
 
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.Font;
+import java.awt.Rectangle;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -12,21 +14,26 @@ import java.awt.event.MouseMotionListener;
 
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.border.EmptyBorder;
 
 import ij.IJ;
+import ij.ImageListener;
 import ij.ImagePlus;
-import ij.ImageStack;
 
 import ij.gui.ImageCanvas;
 import ij.gui.Plot;
 import ij.gui.PlotWindow;
-import ij.measure.Calibration;
+import ij.gui.Roi;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
@@ -43,7 +50,29 @@ import ij.process.ImageProcessor;
  * the user must be careful to open the image in a way that the time 
  * information has been correctly placed (HyperStacks).
  * </p>
- * 
+ *
+ * <p>
+ * Mouse events only record the latest position. The TACs are read by a
+ * background thread, so the plot follows the cursor even on large or virtual
+ * stacks: the positions visited while a TAC is being read are skipped. The
+ * TAC of each uncached voxel is read together with its neighbourhood (one
+ * pass over the frames for the whole block) and kept in a small LRU cache.
+ * Clicking always reads the TAC again, and the cached curves are dropped
+ * whenever ImageJ updates the image.
+ * </p>
+ *
+ * <p>
+ * Instead of the single voxel, the plot can show the mean &plusmn; SD curve
+ * of a k&times;k&times;k neighbourhood of the voxel or of the current ROI
+ * (in the current slice), updated live as the mouse or the ROI moves. Only
+ * the active voxels are included (see {@link ActiveVoxels}), as in
+ * {@link Measure_Time_Activity}. The neighbourhoods (at most 343 TACs) are
+ * computed from the cached TACs. The ROI curve is computed from the
+ * {@link SummedAreaTable} of the current slice, so the cost of each update
+ * does not depend on the size of the ROI, unless the table would need more
+ * than 64 MB; the voxels of the ROI are then read on each update.
+ * </p>
+ *
  * @author First version by 
  * <a href="mailto:pedro.macias.gordaliza@gmail.com">Pedro Macías
  *         Gordaliza</a>, with later improvements by 
@@ -54,12 +83,11 @@ import ij.process.ImageProcessor;
 
 public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
 		WindowListener, MouseListener, MouseMotionListener,
-        KeyListener {
+        KeyListener, ImageListener {
 
 	private ImagePlus imp;
 	private ImageCanvas canvas;
-	private ImageStack is;
-	private Calibration cal;
+	private TACEngine engine;
 	private PlotWindow pw;
 	private JFrame jf;
 	private JLabel enabled;
@@ -67,6 +95,40 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
 	private boolean moveFlag = true;
 	private boolean invert = false;
 
+    // Number of cached TACs and radius of the neighbourhood read with each
+    // TAC that is not in the cache
+    private static final int CACHE_SIZE = 1024;
+    private static final int PREFETCH_RADIUS = 2;
+    // Maximum size of the summed-area table of a slice
+    private static final long MAX_TABLE_BYTES = 64L << 20;
+
+    // Curves that can be plotted: the voxel, the mean of a neighbourhood of
+    // 2 * index + 1 voxels per side, or the mean of the ROI
+    private static final String[] REGIONS = {"Voxel", "3x3x3 mean",
+                                             "5x5x5 mean", "7x7x7 mean",
+                                             "ROI mean"};
+    private static final int VOXEL = 0, ROI = REGIONS.length - 1;
+    private int region = VOXEL;
+
+    // Latest request, or null if it has already been taken by the worker
+    private final Object lock = new Object();
+    private Request pending, last;
+    private Thread worker;
+    // Recently read TACs, by voxel, and summed-area table of the slice of
+    // the last ROI, or null (only used by the worker thread)
+    private Map<Long, double[]> cache;
+    private SummedAreaTable table;
+    private int tableSlice;
+    // Set when the pixels of the image may have changed: the worker then
+    // drops the cache and the table before reading the next curve
+    private volatile boolean stale = false;
+
+    // X axis of the plot, rebuilt only when the frame timing changes, and
+    // buffer for the Y axis (only used by the event dispatch thread)
+    private FrameTimes axisTimes;
+    private double[] axisX, axisY;
+    private String axisLabel;
+
 	// run method from PlugInFilter
 	public void run(ImageProcessor arg0) {
 
@@ -90,8 +152,7 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
 	    } else {
     		this.imp = imp;		
     		this.dim = dim;   
-    		cal = imp.getCalibration();
-    		is = imp.getStack();
+    		engine = new TACEngine(imp, dim[2]);
     		canvas = imp.getCanvas();    		
     		return DOES_ALL;
 	    }
@@ -107,6 +168,12 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
 		if (type.equals("javax.swing.JCheckBox")) {
 		    JCheckBox jcb = (JCheckBox)e.getSource();
 		    invert = jcb.isSelected();		    
+		} else if (type.equals("javax.swing.JComboBox")) {
+		    region = ((JComboBox) e.getSource()).getSelectedIndex();
+		    // Plot the new curve for the last position
+		    if (last != null)
+		        submit(new Request(last.x, last.y, last.slice, false,
+		                           region, _roi()));
 		}
 				
 	}
@@ -132,7 +199,7 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
 	    
         frame.setTitle("Dynamic Pixel Inspector");
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        frame.setBounds(100, 100, 288, 94);
+        frame.setBounds(100, 100, 288, 124);
         
         JPanel contentPane = new JPanel();
         contentPane.setBorder(new EmptyBorder(5, 5, 5, 5));
@@ -152,6 +219,11 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
         lblPressCtrl.setBounds(20, 42, 216, 14);
         contentPane.add(lblPressCtrl);        
         
+        JComboBox regions = new JComboBox(REGIONS);
+        regions.setBounds(20, 60, 216, 23);
+        regions.addActionListener(this);
+        contentPane.add(regions);
+        
         return frame;
     }
 
@@ -172,52 +244,189 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
     @Override
     public void mouseMoved(MouseEvent arg0) {
         if (moveFlag)
-            mouseClicked(arg0);        
+            request(arg0, false);
     }
 
-    /**
-     * Does the actual plotting.
-     */
     @Override
     public void mouseClicked(MouseEvent e) {
-        
-        int offscreenX = canvas.offScreenX(e.getX());
-        int offscreenY = canvas.offScreenY(e.getY());
-        double[] y = getTAC(offscreenX, offscreenY, imp.getSlice());
-
-        if (y != null) {
-            
-            // Fill in X axis (frame number)
-            double[] x = new double[dim[4]];
-            for (int i = 1; i <= x.length; i++)
-                x[i - 1] = i;
-            
-            // Fill in Y axis (image intensity)
-            if (invert)
-                for (int i = 0; i < y.length; i++)
-                    y[i] = -y[i];
-
-            // Prepare plot window            
-            Plot chart = new Plot("Slice = " + imp.getSlice() + ", x = "
-                    + offscreenX + ", y = " + offscreenY, 
-                    "Frame number", "Intensity (calibrated)", x, y);
-            if (pw == null) {
-                pw = chart.show();
-                pw.addWindowListener(this);
-            } else
-                pw.setTitle("Slice = " + imp.getSlice() + ", x = " + offscreenX
-                        + ", y = " + offscreenY);
-            
-            // Add the points for prettier plots
-            chart.addPoints(x, y, PlotWindow.CIRCLE);
-            pw.drawPlot(chart);
-        } 
+        request(e, true);
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent arg0) {
+        // The ROI may be moving
+        if (moveFlag && region == ROI)
+            request(arg0, false);
+    }
+
+    /**
+     * Asks the worker thread to plot the curve under the mouse pointer.
+     */
+    private void request(MouseEvent e, boolean reload) {
+        submit(new Request(canvas.offScreenX(e.getX()),
+                           canvas.offScreenY(e.getY()), imp.getSlice(),
+                           reload, region, _roi()));
+    }
+
+    /**
+     * Replaces the pending request: only the latest one is kept.
+     */
+    private void submit(Request request) {
+        last = request;
+        synchronized (lock) {
+            pending = request;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Copy of the current ROI (the user may modify it while it is read), or
+     * {@code null} if the image has none.
+     */
+    private Roi _roi() {
+        Roi roi = imp.getRoi();
+        return region == ROI && roi != null ? (Roi) roi.clone() : null;
+    }
+
+    /**
+     * A curve to plot.
+     */
+    private static class Request {
+        final int x, y, slice, region;
+        final boolean reload;
+        final Roi roi;
+
+        Request(int x, int y, int slice, boolean reload, int region,
+                Roi roi) {
+            this.x = x;
+            this.y = y;
+            this.slice = slice;
+            this.reload = reload;
+            this.region = region;
+            this.roi = roi;
+        }
+    }
+
+    /**
+     * Reads the requested TACs and plots them, one at a time.
+     */
+    private class Worker extends Thread {
+
+        Worker() {
+            super("Dynamic Pixel Inspector");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Request r;
+                    synchronized (lock) {
+                        while (pending == null)
+                            lock.wait();
+                        r = pending;
+                        pending = null;
+                    }
+                    if (stale) {
+                        stale = false;
+                        cache.clear();
+                        table = null;
+                        // The stack itself may have been replaced
+                        if (Arrays.equals(imp.getDimensions(), dim))
+                            engine = new TACEngine(imp, dim[2]);
+                    }
+                    final double[][] curve = getCurve(r);
+                    if (curve == null) continue;
+                    // Waiting for the plot throttles the requests to the
+                    // repaint rate
+                    EventQueue.invokeAndWait(new Runnable() {
+                        @Override
+                        public void run() {
+                            plot(r, curve[0], curve[1]);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                // turnOff() was called
+            } catch (InvocationTargetException e) {
+                IJ.handleException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Does the actual plotting (in the event dispatch thread).
+     * @param tac Values of the curve.
+     * @param sd Standard deviation of each value, or {@code null}.
+     */
+    private void plot(Request r, double[] tac, double[] sd) {
+
+        // Fill in X axis (frame mid time, or frame number if the frame
+        // timing is unknown)
+        FrameTimes times = FrameTimes.fromImage(imp);
+        if (axisX == null || (times == null ? axisTimes != null
+                                            : !times.equals(axisTimes))) {
+            if (times != null) {
+                axisX = times.getMidTimes();
+                axisLabel = "Time (" + imp.getCalibration().getTimeUnit()
+                            + ")";
+            } else {
+                axisX = new double[dim[4]];
+                for (int i = 1; i <= axisX.length; i++)
+                    axisX[i - 1] = i;
+                axisLabel = "Frame number";
+            }
+            axisTimes = times;
+            axisY = new double[dim[4]];
+        }
+
+        // Fill in Y axis (image intensity). The cached TAC is not modified.
+        for (int i = 0; i < axisY.length; i++)
+            axisY[i] = invert ? -tac[i] : tac[i];
+
+        // Prepare plot window. The window is reused, but the ImageJ 1.x API
+        // needs a new Plot to draw different data.
+        String title = "Slice = " + r.slice;
+        if (r.region == ROI)
+            title += ", " + REGIONS[ROI];
+        else
+            title += ", x = " + r.x + ", y = " + r.y;
+        if (r.region != VOXEL && r.region != ROI)
+            title += " (" + REGIONS[r.region] + ")";
+        Plot chart = new Plot(title, axisLabel, "Intensity (calibrated)",
+                              axisX, axisY);
+        if (pw == null) {
+            pw = chart.show();
+            pw.addWindowListener(this);
+        } else
+            pw.setTitle(title);
+
+        // Add the points for prettier plots
+        chart.addPoints(axisX, axisY, PlotWindow.CIRCLE);
+        if (sd != null)
+            chart.addErrorBars(sd);
+        pw.drawPlot(chart);
     }
-    
+
     /**
      * Enable the events
      */
     private void turnOn() {
+        cache = new LinkedHashMap<Long, double[]>(2 * CACHE_SIZE, 0.75f,
+                                                  true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, double[]> e) {
+                return size() > CACHE_SIZE;
+            }
+        };
+        table = null;
+        stale = false;
+        ImagePlus.addImageListener(this);
+        worker = new Worker();
+        worker.start();
         canvas.addMouseListener(this);
         canvas.addMouseMotionListener(this);
         canvas.addKeyListener(this);
@@ -227,36 +436,198 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
      * Disable the events
      */
     private void turnOff() {
+        ImagePlus.removeImageListener(this);
         canvas.removeMouseMotionListener(this);
         canvas.removeMouseListener(this);
         canvas.removeKeyListener(this);
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    /**
+     * Returns the curve of a request and its standard deviation (
+     * {@code null} for a single voxel), or {@code null} if there is nothing
+     * to plot.
+     */
+    private double[][] getCurve(Request r) {
+        if (r.region == VOXEL) {
+            double[] tac = getTAC(r.x, r.y, r.slice, r.reload);
+            return tac == null ? null : new double[][] {tac, null};
+        }
+        if (r.slice > dim[3] || r.slice < 1)
+            return null;
+
+        if (r.region == ROI) {
+            if (r.roi == null) return null;
+            if (r.reload || tableSlice != r.slice)
+                table = null;
+            double[] s = new double[dim[4]], s2 = new double[dim[4]];
+            int n = SummedAreaTable.getBytes(engine) <= MAX_TABLE_BYTES
+                    ? _addRoi(r.roi, r.slice, s, s2)
+                    : _readRoi(r.roi, r.slice, s, s2);
+            if (n == 0) return null;
+            SummedAreaTable.toMeanSD(s, s2, n);
+            return new double[][] {s, s2};
+        }
+
+        if (r.x >= dim[0] || r.x < 0 || r.y >= dim[1] || r.y < 0)
+            return null;
+        int radius = r.region;
+        int x0 = Math.max(0, r.x - radius);
+        int x1 = Math.min(dim[0] - 1, r.x + radius);
+        int y0 = Math.max(0, r.y - radius);
+        int y1 = Math.min(dim[1] - 1, r.y + radius);
+        VoxelMask mask = engine.getMask();
+        double calzero = engine.getCalibratedZero();
+        TACStatistics stats = new TACStatistics(1, dim[4]);
+        for (int z = Math.max(1, r.slice - radius);
+             z <= Math.min(dim[3], r.slice + radius); z++) {
+            double[][] tacs = _block(x0, y0, x1, y1, z, r.reload);
+            int k = 0;
+            for (int j = y0; j <= y1; j++)
+                for (int i = x0; i <= x1; i++) {
+                    double[] tac = tacs[k++];
+                    if ((mask == null || mask.isActive(z, j * dim[0] + i))
+                            && !Utils.isMasked(tac, calzero))
+                        stats.add(0, tac, 0);
+                }
+        }
+        if (stats.getCount(0) == 0) return null;
+        double[] mean = new double[dim[4]], sd = new double[dim[4]];
+        for (int f = 0; f < dim[4]; f++) {
+            mean[f] = stats.getMean(0, f);
+            sd[f] = stats.getSD(0, f);
+        }
+        return new double[][] {mean, sd};
+    }
+
+    /**
+     * Adds the sums of the voxels of a ROI from the summed-area table of the
+     * slice, one run of consecutive voxels at a time.
+     * @return Number of voxels added.
+     */
+    private int _addRoi(Roi roi, int slice, double[] s, double[] s2) {
+        if (table == null) {
+            table = new SummedAreaTable(engine, slice);
+            tableSlice = slice;
+        }
+        Rectangle b = roi.getBounds();
+        ImageProcessor m = roi.getMask();
+        if (m == null)
+            return table.add(b.x, b.y, b.x + b.width - 1, b.y + b.height - 1,
+                             s, s2);
+        int n = 0;
+        for (int j = 0; j < b.height; j++) {
+            int i = 0;
+            while (i < b.width) {
+                if (m.get(i, j) == 0) {
+                    i++;
+                    continue;
+                }
+                int start = i;
+                while (i < b.width && m.get(i, j) != 0)
+                    i++;
+                n += table.add(b.x + start, b.y + j, b.x + i - 1, b.y + j,
+                               s, s2);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Adds the sums of the active voxels of a ROI, reading them from the
+     * image.
+     * @return Number of voxels added.
+     */
+    private int _readRoi(Roi roi, int slice, double[] s, double[] s2) {
+        double[] frame = new double[dim[0] * dim[1]];
+        boolean[] active = SummedAreaTable.findActive(engine, slice, frame);
+        Rectangle b = roi.getBounds();
+        ImageProcessor m = roi.getMask();
+        int[] offsets = new int[b.width * b.height];
+        int n = 0;
+        for (int j = Math.max(0, b.y); j < Math.min(dim[1], b.y + b.height);
+             j++)
+            for (int i = Math.max(0, b.x);
+                 i < Math.min(dim[0], b.x + b.width); i++)
+                if ((m == null || m.get(i - b.x, j - b.y) != 0)
+                        && active[j * dim[0] + i])
+                    offsets[n++] = j * dim[0] + i;
+        if (n == 0) return 0;
+        for (int f = 0; f < dim[4]; f++) {
+            engine.readFrame(slice, f + 1, frame);
+            for (int k = 0; k < n; k++) {
+                double v = frame[offsets[k]];
+                s[f] += v;
+                s2[f] += v * v;
+            }
+        }
+        return n;
     }
-    
+
     /**
      * Returns the TAC (time-activity curve) for the given x, y and slice
-     * coordinates.
+     * coordinates, from the cache unless {@code reload} is set.
      */
-    private double[] getTAC(int x, int y, int slice) {
-        
+    private double[] getTAC(int x, int y, int slice, boolean reload) {
+
         // Dimension check
         if (x >= dim[0] || x < 0 || y >= dim[1] || y < 0 || slice > dim[3]
                 || slice < 1) {
             return null;
         }
 
-        // Alloc space for the result
-        double[] result = new double[dim[4]];
-
-        // Set the desired slice and iterate through the frames
-        for (int frame = 1; frame <= dim[4]; frame++) {
-            int stack_number = imp.getStackIndex(dim[2], slice, frame);            
-            // Use calibration to return true value
-            result[frame - 1] = cal.getCValue(
-                                    is.getVoxel(x, y, stack_number - 1));
+        Long key = _key(x, y, slice);
+        double[] tac = reload ? null : cache.get(key);
+        if (tac == null) {
+            // Read the neighbourhood of the voxel as well
+            _block(Math.max(0, x - PREFETCH_RADIUS),
+                   Math.max(0, y - PREFETCH_RADIUS),
+                   Math.min(dim[0] - 1, x + PREFETCH_RADIUS),
+                   Math.min(dim[1] - 1, y + PREFETCH_RADIUS), slice, true);
+            tac = cache.get(key);
         }
+        return tac;
+    }
+
+    /**
+     * Returns the TACs of a block of voxels (row by row), from the cache if
+     * they are all there and {@code reload} is not set. Otherwise, the whole
+     * block is read into the cache, each frame only once.
+     */
+    private double[][] _block(int x0, int y0, int x1, int y1, int slice,
+                              boolean reload) {
+        int[] offsets = new int[(x1 - x0 + 1) * (y1 - y0 + 1)];
+        double[][] tacs = new double[offsets.length][];
+        int k = 0;
+        boolean missing = reload;
+        for (int j = y0; j <= y1; j++)
+            for (int i = x0; i <= x1; i++) {
+                offsets[k] = j * dim[0] + i;
+                if (!missing)
+                    missing = (tacs[k] = cache.get(_key(i, j, slice))) == null;
+                k++;
+            }
+        if (!missing)
+            return tacs;
 
-        return result;
+        int frames = dim[4];
+        double[] buffer = engine.createVoxelBuffer(offsets.length);
+        engine.readVoxels(slice, offsets, buffer);
+        for (k = 0; k < offsets.length; k++) {
+            double[] tac = new double[frames];
+            System.arraycopy(buffer, k * frames, tac, 0, frames);
+            cache.put(_key(offsets[k] % dim[0], offsets[k] / dim[0], slice),
+                      tac);
+            tacs[k] = tac;
+        }
+        return tacs;
+    }
 
+    private Long _key(int x, int y, int slice) {
+        return ((long) (slice - 1) * dim[1] + y) * dim[0] + x;
     }
 
     /*
@@ -267,6 +638,20 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
     public void windowOpened(WindowEvent e) {}
     @Override
     public void windowClosing(WindowEvent e) {}
+
+    /**
+     * Drops the cached curves when the pixels of the image are changed
+     * (e.g., by Process&gt;Math, Fill or Undo).
+     */
+    @Override
+    public void imageUpdated(ImagePlus updated) {
+        if (updated == imp)
+            stale = true;
+    }
+    @Override
+    public void imageOpened(ImagePlus opened) {}
+    @Override
+    public void imageClosed(ImagePlus closed) {}
     @Override
     public void windowIconified(WindowEvent e) {}
     @Override
@@ -280,8 +665,6 @@ public class Dynamic_Pixel_Inspector implements PlugInFilter, ActionListener,
     @Override
     public void keyTyped(KeyEvent arg0) {}
     @Override
-    public void mouseDragged(MouseEvent arg0) {}
-    @Override
     public void mouseEntered(MouseEvent e) {}
     @Override
     public void mouseExited(MouseEvent e) {}
@@ -2,14 +2,15 @@ package limtools;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.measure.Calibration;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 
-import static limtools.Utils.getTAC;
-import static limtools.Utils.isMasked;
+import java.io.File;
+import java.io.IOException;
 
 /**
  * <p>
@@ -26,15 +27,28 @@ import static limtools.Utils.isMasked;
  * and then the value for each frame on each successive column.
  * </p>
  * 
+ * <p>
+ * The ImageJ results table keeps everything in memory, so it is only
+ * suitable for small regions. For bigger images the rows can be streamed
+ * straight to a CSV or binary file instead (see {@link VoxelWriter}), which
+ * is the default when there are more than a million unmasked voxels. Macros
+ * keep using the results table unless they choose otherwise.
+ * </p>
+ * 
  * @author José María Mateos - jmmateos@hggm.es
  * 
  */
 public class Dynamic_to_Results implements PlugIn {
 
+    // Images with more unmasked voxels are exported to a file by default
+    // (except from macros, which keep the results table)
+    private static final long MAX_TABLE_VOXELS = 1 << 20;
+    private static final String[] OUTPUTS = {
+        "Results table", "CSV file", "Binary file"
+    };
+
     private ImagePlus imp;
-    private ImageStack is;
     private int[] dim;
-    private Calibration cal;
 
     @Override
     public void run(String args) {
@@ -48,37 +62,121 @@ public class Dynamic_to_Results implements PlugIn {
             return;
         }
 
-        // Assign rest of variables
-        is = imp.getStack();
-        cal = imp.getCalibration();
-        double calzero = cal.getCValue(0.0);
+        boolean table = Macro.getOptions() != null
+                || ActiveVoxels.get(imp).getCount() <= MAX_TABLE_VOXELS;
+        GenericDialog gd = new GenericDialog("Dynamic to Results");
+        gd.addChoice("Output:", OUTPUTS, 
+                     OUTPUTS[table ? 0 : 2]);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        int output = gd.getNextChoiceIndex();
+
+        if (output == 0) {
+            ResultsTable rt = Analyzer.getResultsTable();
+            try {
+                export(imp, new TableWriter(rt, dim[4]));
+            } catch (IOException e) {
+                // Never thrown by the table writer
+                IJ.handleException(e);
+            }
+            rt.showRowNumbers(false);
+            rt.show("Results");
+            return;
+        }
+
+        String ext = output == 1 ? ".csv" : ".lvx";
+        SaveDialog sd = new SaveDialog("Save voxel data", imp.getTitle(), ext);
+        if (sd.getFileName() == null) return;
+        File file = new File(sd.getDirectory(), sd.getFileName());
+        try {
+            VoxelWriter writer = VoxelWriter.create(file, dim);
+            try {
+                export(imp, writer);
+            } finally {
+                writer.close();
+            }
+            IJ.showStatus(writer.getCount() + " voxels written to " 
+                          + file.getName());
+        } catch (IOException e) {
+            IJ.error("Dynamic to Results", "Cannot write " + file + ": " 
+                     + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the TAC of every unmasked voxel, slice by slice, in raster order.
+     * @param imp Dynamic image (HyperStack).
+     * @param writer Destination of the rows. It is not closed.
+     * @throws IOException on write errors.
+     */
+    public static void export(ImagePlus imp, VoxelWriter writer) 
+            throws IOException {
+
+        int[] dim = imp.getDimensions();
+        TACEngine engine = new TACEngine(imp);
+        ActiveVoxels active = ActiveVoxels.get(imp);
+        double[] buffer = engine.createVoxelBuffer(active.getMaxCount());
+        int frames = dim[4];
 
-        ResultsTable rt = Analyzer.getResultsTable();
         for (int z = 0; z < dim[3]; z++) {
             // Update progress bar indicator
             IJ.showProgress(z, dim[3]);
-            for (int x = 0; x < dim[0]; x++) {
-                for (int y = 0; y < dim[1]; y++) {
-                    // Obtain the TAC
-                    double[] tac = getTAC(x, y, z + 1, dim[4], imp, is, cal);
-                    // Ignore masked voxels and store the valid ones as 
-                    // rows on the results table (coordinates first).
-                    if (!isMasked(tac, calzero)) {
-                        rt.incrementCounter();
-                        rt.addValue("x", x);
-                        rt.addValue("y", y);
-                        rt.addValue("slice", z + 1);
-                        for(int i = 0; i < tac.length; i++) {
-                            String colName = String.format("F%d", i);
-                            rt.addValue(colName, tac[i]);
-                        }                        
-                    }
-                }
+            // Obtain only the TACs of the unmasked voxels and store them as
+            // rows (coordinates first)
+            int[] offsets = active.getOffsets(z + 1);
+            engine.readVoxels(z + 1, offsets, buffer);
+            for (int k = 0; k < offsets.length; k++)
+                writer.write(offsets[k] % dim[0], offsets[k] / dim[0], z + 1,
+                             buffer, k * frames);
+        }
+        IJ.showProgress(1.0);
+    }
+
+    /**
+     * Adds the rows to a {@link ResultsTable}. The column indexes are looked
+     * up once, after the first row has been added by name.
+     */
+    private static class TableWriter extends VoxelWriter {
+
+        private final ResultsTable rt;
+        private final String[] colNames;
+        private int[] cols;
+
+        TableWriter(ResultsTable rt, int frames) {
+            super(frames);
+            this.rt = rt;
+            colNames = new String[frames + 3];
+            colNames[0] = "x";
+            colNames[1] = "y";
+            colNames[2] = "slice";
+            for (int i = 0; i < frames; i++)
+                colNames[i + 3] = String.format("F%d", i);
+        }
+
+        @Override
+        protected void writeRecord(int x, int y, int slice, double[] buffer,
+                                   int offset) {
+            rt.incrementCounter();
+            if (cols == null) {
+                rt.addValue(colNames[0], x);
+                rt.addValue(colNames[1], y);
+                rt.addValue(colNames[2], slice);
+                for (int i = 0; i < frames; i++)
+                    rt.addValue(colNames[i + 3], buffer[offset + i]);
+                cols = new int[colNames.length];
+                for (int i = 0; i < cols.length; i++)
+                    cols[i] = rt.getColumnIndex(colNames[i]);
+            } else {
+                rt.addValue(cols[0], x);
+                rt.addValue(cols[1], y);
+                rt.addValue(cols[2], slice);
+                for (int i = 0; i < frames; i++)
+                    rt.addValue(cols[i + 3], buffer[offset + i]);
             }
         }
-        
-        rt.showRowNumbers(false);
-        rt.show("Results");
-        
+
+        @Override
+        public void close() {
+        }
     }
 }
@@ -0,0 +1,344 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * This plugin smooths the time-activity curves of a dynamic image, for
+ * studies with short (noisy) frames. The available filters are:
+ * </p>
+ *
+ * <ul>
+ * <li>Temporal Gaussian: each frame is replaced by the Gaussian-weighted
+ * average of the neighbouring frames (sigma given in frames).</li>
+ * <li>Temporal median: each frame is replaced by the median of the frames
+ * within a given radius, which removes spikes and keeps steps.</li>
+ * <li>Spatio-temporal Gaussian: each frame is first smoothed in-plane with a
+ * separable Gaussian (sigma given in pixels) and then along the frames.</li>
+ * </ul>
+ *
+ * <p>
+ * The windows are truncated at the first and last frames (and at the borders
+ * of the image), with the weights renormalized. The spatial filter only mixes
+ * unmasked voxels, so the background does not leak into the curves.
+ * </p>
+ *
+ * <p>
+ * Each slice is streamed frame by frame through a ring buffer that holds only
+ * the frames of the current window, and the slices are processed in
+ * parallel. The result is a new 32-bit HyperStack with the timing and the
+ * mask of the original image; for virtual stacks it is a {@link MappedStack}
+ * backed by a raw file chosen by the user, as in {@link Normalize_Dynamic}.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Filter_Dynamic implements PlugIn {
+
+    /** Filters. */
+    public static final int GAUSSIAN = 0, MEDIAN = 1, SPATIOTEMPORAL = 2;
+
+    private static final String[] FILTERS = {"Temporal Gaussian",
+                                             "Temporal median",
+                                             "Spatio-temporal Gaussian"};
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Filter dynamic");
+        gd.addChoice("Filter:", FILTERS, FILTERS[GAUSSIAN]);
+        gd.addNumericField("Temporal sigma or median radius (frames):", 1,
+                           1);
+        gd.addNumericField("Spatial sigma (pixels):", 1, 1);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int mode = gd.getNextChoiceIndex();
+        double temporal = gd.getNextNumber();
+        double spatial = gd.getNextNumber();
+
+        ImagePlus res;
+        try {
+            if (imp.getStack().isVirtual()) {
+                SaveDialog sd = new SaveDialog("Save filtered raw image",
+                                               imp.getTitle() + "_filtered",
+                                               ".raw");
+                if (sd.getFileName() == null) return;
+                res = filter(imp, mode, temporal, spatial,
+                             new File(sd.getDirectory(), sd.getFileName()));
+            } else {
+                res = filter(imp, mode, temporal, spatial);
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        } catch (IOException e) {
+            IJ.error("Cannot create the output file: " + e.getMessage());
+            return;
+        }
+
+        res.show();
+    }
+
+    /**
+     * Filters the unmasked TACs of the image into a new 32-bit image.
+     * @param imp Dynamic image (HyperStack).
+     * @param mode One of {@link #GAUSSIAN}, {@link #MEDIAN} or
+     * {@link #SPATIOTEMPORAL}.
+     * @param temporal Sigma of the temporal Gaussian or radius of the median,
+     * in frames.
+     * @param spatial Sigma of the in-plane Gaussian, in pixels (only for
+     * {@link #SPATIOTEMPORAL}).
+     * @return The filtered image (masked voxels are 0).
+     * @throws IllegalArgumentException if the parameters are not valid.
+     */
+    public static ImagePlus filter(ImagePlus imp, int mode, double temporal,
+                                   double spatial) {
+        _check(mode, temporal, spatial);
+        int [] dim = imp.getDimensions();
+        return _filter(imp, mode, temporal, spatial,
+                       _copyProperties(imp,
+                               IJ.createImage(_title(imp), "32-bit", dim[0],
+                                              dim[1], 1, dim[3], dim[4])));
+    }
+
+    /**
+     * Filters the unmasked TACs of the image into a new 32-bit image backed
+     * by a raw file (see {@link MappedStack}), for images that do not fit in
+     * memory.
+     * @param imp Dynamic image (HyperStack).
+     * @param mode One of {@link #GAUSSIAN}, {@link #MEDIAN} or
+     * {@link #SPATIOTEMPORAL}.
+     * @param temporal Sigma of the temporal Gaussian or radius of the median,
+     * in frames.
+     * @param spatial Sigma of the in-plane Gaussian, in pixels (only for
+     * {@link #SPATIOTEMPORAL}).
+     * @param output Raw file for the result (overwritten).
+     * @return The filtered image (masked voxels are 0).
+     * @throws IllegalArgumentException if the parameters are not valid.
+     * @throws IOException if the output file cannot be created.
+     */
+    public static ImagePlus filter(ImagePlus imp, int mode, double temporal,
+                                   double spatial, File output)
+            throws IOException {
+        _check(mode, temporal, spatial);
+        int [] dim = imp.getDimensions();
+        MappedStack stack = MappedStack.create(output, dim[0], dim[1], 32, 1,
+                                               dim[3], dim[4]);
+        return _filter(imp, mode, temporal, spatial,
+                       _copyProperties(imp, stack.createImage(_title(imp))));
+    }
+
+    private static void _check(int mode, double temporal, double spatial) {
+        if (mode < GAUSSIAN || mode > SPATIOTEMPORAL)
+            throw new IllegalArgumentException("Unknown filter: " + mode);
+        if (!(temporal >= 0.0) || mode == SPATIOTEMPORAL && !(spatial >= 0.0))
+            throw new IllegalArgumentException(
+                    "The filter sizes cannot be negative");
+    }
+
+    private static ImagePlus _filter(ImagePlus imp, final int mode,
+                                     double temporal, double spatial,
+                                     ImagePlus res) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        final int width = dim[0], height = dim[1];
+
+        // Temporal window: radius and weights (index d + radius)
+        final int radius;
+        final double [] weights;
+        if (mode == MEDIAN) {
+            radius = (int) temporal;
+            weights = null;
+        } else {
+            radius = (int) Math.ceil(3.0 * temporal);
+            weights = _gaussian(temporal, radius);
+        }
+        final double [] kernel = mode == SPATIOTEMPORAL && spatial > 0.0
+                ? _gaussian(spatial, (int) Math.ceil(3.0 * spatial)) : null;
+        final int window = 2 * radius + 1;
+
+        final TACEngine engine = new TACEngine(imp);
+        final TACEngine target = new TACEngine(res);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        final int size = engine.getSliceSize();
+
+        SliceExecutor.run(dim[3], new SliceTask<Buffers, Void>() {
+            @Override
+            public Buffers createState() {
+                return new Buffers(size, window, kernel != null);
+            }
+
+            @Override
+            public Void process(int slice, Buffers b) {
+                int [] offsets = active.getOffsets(slice);
+                if (offsets.length == 0) return null;
+
+                // Smoothed weight of the unmasked voxels, to renormalize the
+                // spatial filter at the mask and image borders
+                if (kernel != null) {
+                    Arrays.fill(b.norm, 0.0);
+                    for (int i : offsets)
+                        b.norm[i] = 1.0;
+                    _convolve(b.norm, b.temp, width, height, kernel);
+                }
+
+                // Frame j enters the ring when frame j - radius is computed
+                for (int j = 0; j < frames + radius; j++) {
+                    if (j < frames) {
+                        double [] plane = b.ring[j % window];
+                        engine.readFrame(slice, j + 1, plane);
+                        if (kernel != null) {
+                            // Only the unmasked voxels are smoothed
+                            Arrays.fill(b.temp, 0.0);
+                            for (int i : offsets)
+                                b.temp[i] = plane[i];
+                            System.arraycopy(b.temp, 0, plane, 0, size);
+                            _convolve(plane, b.temp, width, height, kernel);
+                            for (int i : offsets)
+                                plane[i] /= b.norm[i];
+                        }
+                    }
+                    int t = j - radius;
+                    if (t < 0) continue;
+
+                    int first = Math.max(0, t - radius);
+                    int last = Math.min(frames - 1, t + radius);
+                    if (mode == MEDIAN) {
+                        int n = last - first + 1;
+                        for (int i : offsets) {
+                            for (int f = first; f <= last; f++)
+                                b.values[f - first] = b.ring[f % window][i];
+                            b.out[i] = _median(b.values, n);
+                        }
+                    } else {
+                        // Truncated window: renormalize the weights
+                        double total = 0.0;
+                        for (int f = first; f <= last; f++)
+                            total += weights[f - t + radius];
+                        Arrays.fill(b.out, 0.0);
+                        for (int f = first; f <= last; f++) {
+                            double w = weights[f - t + radius] / total;
+                            double [] plane = b.ring[f % window];
+                            for (int i : offsets)
+                                b.out[i] += w * plane[i];
+                        }
+                    }
+                    target.writeFrame(slice, t + 1, offsets, b.out);
+                }
+                return null;
+            }
+        });
+
+        res.updateImage();
+        return res;
+    }
+
+    // Gaussian weights for -radius..radius (not normalized)
+    private static double[] _gaussian(double sigma, int radius) {
+        double [] w = new double[2 * radius + 1];
+        for (int d = -radius; d <= radius; d++)
+            w[d + radius] = sigma > 0.0
+                    ? Math.exp(-0.5 * d * d / (sigma * sigma)) : 1.0;
+        return w;
+    }
+
+    // Separable convolution of a plane (zero outside the image), in place
+    private static void _convolve(double [] plane, double [] temp, int width,
+                                  int height, double [] kernel) {
+        int r = kernel.length / 2;
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                double s = 0.0;
+                int from = Math.max(-r, -x), to = Math.min(r, width - 1 - x);
+                for (int d = from; d <= to; d++)
+                    s += kernel[d + r] * plane[row + x + d];
+                temp[row + x] = s;
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            int from = Math.max(-r, -y), to = Math.min(r, height - 1 - y);
+            for (int x = 0; x < width; x++) {
+                double s = 0.0;
+                for (int d = from; d <= to; d++)
+                    s += kernel[d + r] * temp[(y + d) * width + x];
+                plane[y * width + x] = s;
+            }
+        }
+    }
+
+    // Median of the first n values (reordered)
+    private static double _median(double [] values, int n) {
+        // Insertion sort: the window is small
+        for (int i = 1; i < n; i++) {
+            double v = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > v) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = v;
+        }
+        return n % 2 == 1 ? values[n / 2]
+                          : 0.5 * (values[n / 2 - 1] + values[n / 2]);
+    }
+
+    private static String _title(ImagePlus imp) {
+        return imp.getTitle() + " (filtered)";
+    }
+
+    // Copies the spatial calibration, timing and mask of imp
+    private static ImagePlus _copyProperties(ImagePlus imp, ImagePlus res) {
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        res.setCalibration(cal);
+        FrameTimes times = FrameTimes.fromImage(imp);
+        if (times != null)
+            times.attach(res);
+        VoxelMask mask = VoxelMask.get(imp);
+        if (mask != null)
+            mask.attach(res);
+        return res;
+    }
+
+    // Per-thread ring of frames and scratch planes
+    private static class Buffers {
+        final double [][] ring;
+        final double [] out, values;
+        final double [] temp, norm;
+
+        Buffers(int size, int window, boolean spatial) {
+            ring = new double[window][size];
+            out = new double[size];
+            values = new double[window];
+            temp = spatial ? new double[size] : null;
+            norm = spatial ? new double[size] : null;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * Keeps the results of a dynamic study up to date while its frames are
+ * acquired, one 3D frame at a time, so each new frame costs O(voxels)
+ * instead of processing the whole study again:
+ * </p>
+ *
+ * <ul>
+ * <li>The mean TAC (with SD, minimum, maximum and number of voxels) of the
+ * unmasked voxels, or of every region of a label image. Each frame is kept
+ * in a {@link TACStatistics}, the same accumulator used by
+ * {@link Measure_Time_Activity} and {@link Label_Time_Activity}, so the
+ * results agree with them on the complete study up to the last bits.</li>
+ * <li>The average image over all the frames received, weighted by the frame
+ * durations, as {@link Average_Frames}.</li>
+ * <li>The area under the curve of each voxel (sum of the values weighted by
+ * the frame durations).</li>
+ * </ul>
+ *
+ * <p>
+ * As in the other plugins, voxels whose TAC is 0 are not measured. Since a
+ * voxel can be 0 in the first frames and not afterwards, the frames where it
+ * was 0 are added to the statistics when it becomes active; only one bit per
+ * voxel and frame is kept, and only when the calibrated zero is not 0.
+ * </p>
+ *
+ * <p>
+ * Frames are added with {@link #addFrame(ImagePlus, double)} (see
+ * {@link Watch_Frames} for a directory watcher). The slices of each frame
+ * are processed in parallel and the average and AUC images are updated in
+ * place.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class FrameAccumulator {
+
+    private final int width, height, slices, size, groups;
+    // Measured voxels of each slice (inside the mask), groups present in
+    // each slice and position of the group of each voxel in that list (-1
+    // for the background)
+    private final int[][] offsets;
+    private final int[][] present;
+    private final int[][] local;
+
+    // Sum of the values weighted by the durations, per measured voxel
+    private final double[][] auc;
+    private double duration;
+    private final ImagePlus average, area;
+    private final ImageStack average_stack, area_stack;
+
+    // Voxels with a value other than 0 so far, and how many per group
+    private final boolean[][] active;
+    private final long[] count;
+
+    // One element per frame: statistics of each group, calibrated zero of
+    // the frame and, if it is not 0, the inactive voxels that had that value
+    // (per slice)
+    private final List<TACStatistics> stats = new ArrayList<TACStatistics>();
+    private final List<Double> calzeros = new ArrayList<Double>();
+    private final List<BitSet[]> pending = new ArrayList<BitSet[]>();
+
+    /**
+     * Creates an empty accumulator.
+     * @param width Width of the frames.
+     * @param height Height of the frames.
+     * @param slices Number of slices of the frames.
+     * @param mask Voxels to measure, or {@code null} for all of them.
+     * @param labels Label image with the regions to measure (label 0 is the
+     * background), or {@code null} to measure all the voxels as a single
+     * region (group 0).
+     * @throws IllegalArgumentException if the dimensions do not agree or the
+     * labels are not valid.
+     */
+    public FrameAccumulator(int width, int height, int slices,
+                            VoxelMask mask, ImagePlus labels) {
+        this.width = width;
+        this.height = height;
+        this.slices = slices;
+        this.size = width * height;
+        if (mask != null && (mask.getWidth() != width
+                || mask.getHeight() != height || mask.getSlices() != slices))
+            throw new IllegalArgumentException(
+                    "Mask and frame dimensions do not agree");
+
+        int [][] raw = labels != null ? new int[slices][size] : null;
+        int top = 0;
+        if (labels != null) {
+            int [] dim = labels.getDimensions();
+            if (dim[0] != width || dim[1] != height || dim[3] != slices)
+                throw new IllegalArgumentException(
+                        "Labels and frame dimensions do not agree");
+            for (int slice = 1; slice <= slices; slice++)
+                top = Math.max(top, Utils.readLabels(labels.getStack(), slice,
+                                                     raw[slice - 1]));
+            if (top > Utils.MAX_LABEL)
+                throw new IllegalArgumentException(
+                        "Labels cannot be greater than " + Utils.MAX_LABEL);
+        }
+        groups = top + 1;
+        count = new long[groups];
+
+        offsets = new int[slices][];
+        present = new int[slices][];
+        local = new int[slices][];
+        auc = new double[slices][];
+        active = new boolean[slices][];
+        int [] temp = new int[size];
+        int [] index = new int[groups];
+        Arrays.fill(index, -1);
+        for (int slice = 1; slice <= slices; slice++) {
+            int s = slice - 1;
+            int n = 0;
+            for (int i = 0; i < size; i++)
+                if (mask == null || mask.isActive(slice, i))
+                    temp[n++] = i;
+            offsets[s] = Arrays.copyOf(temp, n);
+            auc[s] = new double[n];
+            active[s] = new boolean[n];
+            // Dense index of the groups of the slice, so the partial result
+            // of each slice only holds those
+            local[s] = new int[n];
+            int groupsHere = 0;
+            for (int k = 0; k < n; k++) {
+                int g = raw == null ? 0 : raw[s][offsets[s][k]];
+                if (raw != null && g == 0) {
+                    local[s][k] = -1;
+                    continue;
+                }
+                if (index[g] < 0) {
+                    index[g] = groupsHere;
+                    temp[groupsHere++] = g;
+                }
+                local[s][k] = index[g];
+            }
+            present[s] = Arrays.copyOf(temp, groupsHere);
+            for (int g : present[s])
+                index[g] = -1;
+        }
+
+        average = IJ.createImage("Running average", "32-bit", width, height,
+                                 slices);
+        area = IJ.createImage("AUC", "32-bit", width, height, slices);
+        average_stack = average.getStack();
+        area_stack = area.getStack();
+    }
+
+    /**
+     * Adds the next frame of the study.
+     * @param frame 3D frame (a stack with one plane per slice).
+     * @param frameDuration Duration of the frame (1 if unknown).
+     * @throws IllegalArgumentException if the dimensions do not agree.
+     */
+    public synchronized void addFrame(ImagePlus frame,
+                                      final double frameDuration) {
+        if (frame.getWidth() != width || frame.getHeight() != height
+                || frame.getStackSize() != slices)
+            throw new IllegalArgumentException(
+                    "The frame dimensions do not agree");
+        // Stacks may be opened as a series of frames
+        if (frame.getDimensions()[3] != slices)
+            frame.setDimensions(1, slices, 1);
+        if (stats.isEmpty()) {
+            Calibration cal = frame.getCalibration().copy();
+            cal.disableDensityCalibration();
+            average.setCalibration(cal);
+            area.setCalibration(cal);
+        }
+
+        final TACEngine engine = new TACEngine(frame);
+        final double calzero = engine.getCalibratedZero();
+        final BitSet [] zeros = calzero != 0.0 ? new BitSet[slices] : null;
+        duration += frameDuration;
+        final double total = duration;
+
+        final TACStatistics current = new TACStatistics(groups, 1);
+        final int previous = stats.size();
+        stats.add(current);
+        calzeros.add(calzero);
+        pending.add(zeros);
+
+        SliceExecutor.reduce(slices, new SliceTask<double[], Partial>() {
+            @Override
+            public double[] createState() {
+                return new double[size];
+            }
+
+            @Override
+            public Partial process(int slice, double[] plane) {
+                int s = slice - 1;
+                int [] o = offsets[s];
+                int [] l = local[s];
+                double [] a = auc[s];
+                boolean [] act = active[s];
+                float [] avg = (float []) average_stack.getPixels(slice);
+                float [] ar = (float []) area_stack.getPixels(slice);
+                Partial partial = new Partial(present[s].length);
+                if (zeros != null) zeros[s] = new BitSet();
+
+                engine.readFrame(slice, 1, plane);
+                for (int k = 0; k < o.length; k++) {
+                    int i = o[k];
+                    double v = plane[i];
+                    a[k] += v * frameDuration;
+                    avg[i] = (float) (a[k] / total);
+                    ar[i] = (float) a[k];
+
+                    if (l[k] < 0) continue;
+                    if (!act[k]) {
+                        if (v == calzero || v == 0.0) {
+                            if (zeros != null && v == calzero)
+                                zeros[s].set(k);
+                            continue;
+                        }
+                        act[k] = true;
+                        partial.joined.add(k);
+                    }
+                    partial.stats.add(l[k], plane, i);
+                }
+                return partial;
+            }
+        }, new Reducer<Partial>() {
+            // The value of a new active voxel in a previous frame
+            private final double [] value = new double[1];
+
+            @Override
+            public void reduce(int slice, Partial partial) {
+                int s = slice - 1;
+                current.merge(partial.stats, present[s]);
+                // New active voxels: add their values in the previous frames
+                for (int k : partial.joined) {
+                    int g = present[s][local[s][k]];
+                    count[g]++;
+                    for (int f = 0; f < previous; f++) {
+                        BitSet [] z = pending.get(f);
+                        value[0] = z != null && z[s].get(k)
+                                ? calzeros.get(f) : 0.0;
+                        stats.get(f).add(g, value, 0);
+                    }
+                }
+            }
+        });
+
+        average.updateAndDraw();
+        area.updateAndDraw();
+    }
+
+    /**
+     * @return Number of frames added.
+     */
+    public synchronized int getFrames() {
+        return stats.size();
+    }
+
+    /**
+     * @return Number of groups (the highest label plus one).
+     */
+    public int getGroups() {
+        return groups;
+    }
+
+    /**
+     * @return Sum of the durations of the frames added.
+     */
+    public synchronized double getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return Number of measured voxels of the group (with a value other
+     * than 0 in some frame).
+     */
+    public synchronized long getCount(int group) {
+        return count[group];
+    }
+
+    /**
+     * @return Mean value of the group for the given frame (0-based).
+     */
+    public synchronized double getMean(int group, int frame) {
+        return stats.get(frame).getMean(group, 0);
+    }
+
+    /**
+     * @return Sample standard deviation of the group for the given frame
+     * (0-based), or 0 if the group has less than two voxels.
+     */
+    public synchronized double getSD(int group, int frame) {
+        return stats.get(frame).getSD(group, 0);
+    }
+
+    /**
+     * @return Minimum value of the group for the given frame (0-based).
+     */
+    public synchronized double getMin(int group, int frame) {
+        return stats.get(frame).getMin(group, 0);
+    }
+
+    /**
+     * @return Maximum value of the group for the given frame (0-based).
+     */
+    public synchronized double getMax(int group, int frame) {
+        return stats.get(frame).getMax(group, 0);
+    }
+
+    /**
+     * @return 32-bit image with the duration-weighted average of the frames
+     * added so far (0 outside the mask). It is updated by each new frame.
+     */
+    public ImagePlus getAverage() {
+        return average;
+    }
+
+    /**
+     * @return 32-bit image with the area under the curve of each voxel for
+     * the frames added so far (0 outside the mask). It is updated by each
+     * new frame.
+     */
+    public ImagePlus getAUC() {
+        return area;
+    }
+
+    // Statistics of a frame for the groups present in a slice, and voxels
+    // that became active in it
+    private static class Partial {
+        final TACStatistics stats;
+        final List<Integer> joined = new ArrayList<Integer>();
+
+        Partial(int groups) {
+            stats = new TACStatistics(groups, 1);
+        }
+    }
+}
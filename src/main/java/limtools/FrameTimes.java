@@ -0,0 +1,252 @@
+package limtools;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Timing of the frames of a dynamic image: the start time and the duration
+ * of each frame, which give the time axis used by the plugins instead of the
+ * frame index.
+ * </p>
+ *
+ * <p>
+ * ImageJ only stores a single frame interval in the {@link Calibration}, so
+ * the real (usually non-uniform) durations of a PET protocol can be given by
+ * the user and attached to the image as a property.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class FrameTimes {
+
+    /** Name of the image property that holds the attached timing. */
+    public static final String PROPERTY = "limtools.frametimes";
+
+    private final double[] starts, durations;
+
+    /**
+     * Creates a timing with consecutive frames, the first one starting at 0.
+     * @param durations Duration of each frame (positive values).
+     * @throws IllegalArgumentException if a duration is not positive.
+     */
+    public FrameTimes(double[] durations) {
+        this(0.0, durations);
+    }
+
+    /**
+     * Creates a timing with consecutive frames.
+     * @param start Start time of the first frame.
+     * @param durations Duration of each frame (positive values).
+     * @throws IllegalArgumentException if a duration is not positive.
+     */
+    public FrameTimes(double start, double[] durations) {
+        this(_consecutive(start, durations), durations);
+    }
+
+    /**
+     * Creates a timing with the given start times (there may be gaps
+     * between frames).
+     * @param starts Start time of each frame.
+     * @param durations Duration of each frame (positive values).
+     * @throws IllegalArgumentException if a duration is not positive, the
+     * frames overlap or the lengths differ.
+     */
+    public FrameTimes(double[] starts, double[] durations) {
+        if (starts.length != durations.length)
+            throw new IllegalArgumentException(
+                    "Different number of start times and durations");
+        for (int f = 0; f < durations.length; f++) {
+            if (!(durations[f] > 0.0))
+                throw new IllegalArgumentException(
+                        "Frame durations must be positive");
+            if (f > 0 && starts[f] < starts[f - 1] + durations[f - 1])
+                throw new IllegalArgumentException("Frames cannot overlap");
+        }
+        this.starts = starts.clone();
+        this.durations = durations.clone();
+    }
+
+    // Start times of consecutive frames
+    private static double[] _consecutive(double start, double[] durations) {
+        double[] res = new double[durations.length];
+        for (int f = 0; f < res.length; f++) {
+            res[f] = start;
+            start += durations[f];
+        }
+        return res;
+    }
+
+    /**
+     * @param frames Number of frames.
+     * @param duration Duration of every frame.
+     * @return Timing where all the frames last the same.
+     */
+    public static FrameTimes uniform(int frames, double duration) {
+        double[] d = new double[frames];
+        Arrays.fill(d, duration);
+        return new FrameTimes(d);
+    }
+
+    /**
+     * Parses a list of durations separated by commas or spaces. The first
+     * frame starts at 0.
+     * @param spec The list, e.g. {@code "10,10,30,30,60"}.
+     * @param frames Expected number of frames.
+     * @return The timing.
+     * @throws IllegalArgumentException if the list is not valid.
+     */
+    public static FrameTimes parse(String spec, int frames) {
+        return parse(spec, 0.0, frames);
+    }
+
+    /**
+     * Parses a list of durations separated by commas or spaces.
+     * @param spec The list, e.g. {@code "10,10,30,30,60"}.
+     * @param start Start time of the first frame.
+     * @param frames Expected number of frames.
+     * @return The timing.
+     * @throws IllegalArgumentException if the list is not valid.
+     */
+    public static FrameTimes parse(String spec, double start, int frames) {
+        String[] items = spec.trim().split("[,\\s]+");
+        if (items.length != frames)
+            throw new IllegalArgumentException("Expected " + frames
+                    + " frame durations, found " + items.length);
+        double[] d = new double[frames];
+        try {
+            for (int i = 0; i < frames; i++)
+                d[i] = Double.parseDouble(items[i]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid frame durations: "
+                                               + spec);
+        }
+        return new FrameTimes(start, d);
+    }
+
+    /**
+     * Finds the timing of an image: the attached one, if any, or a uniform
+     * timing from the frame interval of its calibration.
+     * @param imp Dynamic image.
+     * @return The timing, or {@code null} if it is unknown.
+     */
+    public static FrameTimes fromImage(ImagePlus imp) {
+        int frames = imp.getNFrames();
+        Object times = imp.getProperty(PROPERTY);
+        if (times instanceof FrameTimes
+                && ((FrameTimes) times).getFrames() == frames)
+            return (FrameTimes) times;
+        double interval = imp.getCalibration().frameInterval;
+        if (interval > 0.0)
+            return uniform(frames, interval);
+        return null;
+    }
+
+    /**
+     * Attaches this timing to an image.
+     * @param imp Dynamic image with the same number of frames.
+     * @throws IllegalArgumentException if the number of frames differs.
+     */
+    public void attach(ImagePlus imp) {
+        if (imp.getNFrames() != durations.length)
+            throw new IllegalArgumentException(
+                    "The number of frames does not agree");
+        imp.setProperty(PROPERTY, this);
+    }
+
+    public int getFrames() {
+        return durations.length;
+    }
+
+    /**
+     * @param frame Frame (0-based).
+     * @return Duration of the frame.
+     */
+    public double getDuration(int frame) {
+        return durations[frame];
+    }
+
+    /**
+     * @param frame Frame (0-based).
+     * @return Start time of the frame.
+     */
+    public double getStart(int frame) {
+        return starts[frame];
+    }
+
+    /**
+     * @param frame Frame (0-based).
+     * @return End time of the frame.
+     */
+    public double getEnd(int frame) {
+        return starts[frame] + durations[frame];
+    }
+
+    /**
+     * @param frame Frame (0-based).
+     * @return Mid time of the frame, the usual time of its sample.
+     */
+    public double getMidTime(int frame) {
+        return starts[frame] + 0.5 * durations[frame];
+    }
+
+    /**
+     * @return Mid time of every frame.
+     */
+    public double[] getMidTimes() {
+        double[] res = new double[durations.length];
+        for (int f = 0; f < res.length; f++)
+            res[f] = getMidTime(f);
+        return res;
+    }
+
+    /**
+     * Integrates a curve of frame values from the start of the first frame
+     * to the mid time of each frame, assuming the value is constant during
+     * each frame (gaps between frames add nothing).
+     * @param values One value per frame.
+     * @return The integral at the mid time of each frame.
+     */
+    public double[] integrateToMid(double[] values) {
+        double[] res = new double[values.length];
+        double total = 0.0;
+        for (int f = 0; f < res.length; f++) {
+            double area = values[f] * durations[f];
+            res[f] = total + 0.5 * area;
+            total += area;
+        }
+        return res;
+    }
+
+    /**
+     * Formats the durations as a comma-separated list (the format read by
+     * {@link #parse(String, int)}).
+     * @return The list.
+     */
+    public String formatDurations() {
+        StringBuilder sb = new StringBuilder();
+        for (int f = 0; f < durations.length; f++) {
+            if (f > 0) sb.append(',');
+            double d = durations[f];
+            sb.append(d == Math.rint(d) ? String.valueOf((long) d)
+                                        : String.valueOf(d));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof FrameTimes)) return false;
+        FrameTimes other = (FrameTimes) o;
+        return Arrays.equals(starts, other.starts)
+                && Arrays.equals(durations, other.durations);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(starts) + Arrays.hashCode(durations);
+    }
+}
@@ -0,0 +1,274 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import java.util.Arrays;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * This plugin fits, for every unmasked voxel of a dynamic image, a graphical
+ * kinetic model against a reference (or input) time-activity curve, such as
+ * the one computed by {@link Measure_Time_Activity} on a reference region:
+ * </p>
+ *
+ * <ul>
+ * <li>Patlak: {@code C(t) / Cr(t)} against {@code ∫Cr / Cr(t)}. The slope
+ * is the influx constant.</li>
+ * <li>Logan (reference tissue): {@code ∫C / C(t)} against
+ * {@code ∫Cr / C(t)}. The slope is the distribution volume ratio.</li>
+ * </ul>
+ *
+ * <p>
+ * Only the frames from a given one (when the plot becomes linear) are used.
+ * The integrals are computed up to the mid time of each frame (see
+ * {@link FrameTimes#integrateToMid(double[])}). Each regression is solved in
+ * closed form from running means and co-moments (Welford updates, which do
+ * not cancel like raw sums of squares) updated frame by frame, so a voxel
+ * costs O(frames) and nothing is allocated per voxel. The slope, intercept
+ * and r² maps are returned as 32-bit images; masked voxels are set to 0 and
+ * voxels that cannot be fitted to NaN (r² is NaN as well for flat plots).
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Graphical_Analysis implements PlugIn {
+
+    /** Models. */
+    public static final int PATLAK = 0, LOGAN = 1;
+
+    /** Index of each map in the result of {@link #fit}. */
+    public static final int SLOPE = 0, INTERCEPT = 1, R2 = 2;
+
+    private static final String[] MODELS = {"Patlak", "Logan"};
+    private static final String[] MAPS = {"slope", "intercept", "r2"};
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        int frames = dim[4];
+        String[] choices = new String[frames];
+        for (int i = 0; i < choices.length; i++)
+            choices[i] = (i + 1) + "";
+
+        FrameTimes known = FrameTimes.fromImage(imp);
+
+        GenericDialog gd = new GenericDialog("Graphical analysis");
+        gd.addChoice("Model:", MODELS, MODELS[0]);
+        gd.addStringField("Frame durations:", known == null ? ""
+                          : known.formatDurations(), 30);
+        gd.addNumericField("First frame start:",
+                           known == null ? 0 : known.getStart(0), 2);
+        gd.addChoice("Fit from frame:", choices, choices[frames / 2]);
+        gd.addMessage("Reference TAC (Activity column of the Results table,\n"
+                      + "or a comma-separated list of values):");
+        gd.addNumericField("Label (for Label Time Activity):", 1, 0);
+        gd.addStringField("Values:", "", 30);
+        gd.addCheckbox("Remember the durations for the image", false);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int model = gd.getNextChoiceIndex();
+        String durations = gd.getNextString().trim();
+        double start = gd.getNextNumber();
+        int first = Integer.parseInt(gd.getNextChoice());
+        int label = (int) gd.getNextNumber();
+        String values = gd.getNextString().trim();
+        boolean remember = gd.getNextBoolean();
+
+        ImagePlus [] maps;
+        try {
+            if (durations.isEmpty())
+                throw new IllegalArgumentException(
+                        "The frame durations are needed");
+            FrameTimes times;
+            if (known != null && durations.equals(known.formatDurations())
+                    && start == known.getStart(0))
+                times = known;
+            else
+                times = FrameTimes.parse(durations, start, frames);
+            if (remember)
+                times.attach(imp);
+
+            double [] reference = values.isEmpty()
+                    ? Utils.readTAC(Analyzer.getResultsTable(), label, frames)
+                    : Utils.parseTAC(values, frames);
+            maps = fit(imp, reference, times, model, first);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        for (ImagePlus map : maps)
+            map.show();
+    }
+
+    /**
+     * Fits a graphical model to every unmasked voxel.
+     * @param imp Dynamic image (HyperStack).
+     * @param reference Reference (or input) TAC, one value per frame.
+     * @param times Frame timing.
+     * @param model {@link #PATLAK} or {@link #LOGAN}.
+     * @param first First frame (1-based) of the linear part of the plot.
+     * @return The 32-bit maps, indexed by {@link #SLOPE},
+     * {@link #INTERCEPT} and {@link #R2}.
+     * @throws IllegalArgumentException if the parameters are not valid.
+     */
+    public static ImagePlus[] fit(ImagePlus imp, double [] reference,
+                                  final FrameTimes times, final int model,
+                                  int first) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        if (times.getFrames() != frames || reference.length != frames)
+            throw new IllegalArgumentException(
+                    "The number of frames does not agree");
+        if (first < 1 || first >= frames)
+            throw new IllegalArgumentException(
+                    "At least two frames are needed for the fit");
+        final int f0 = first - 1;
+
+        // Reference terms, shared by every voxel
+        final double [] ref = reference.clone();
+        final double [] ref_integral = times.integrateToMid(ref);
+        if (model == PATLAK)
+            for (int f = f0; f < frames; f++)
+                if (ref[f] == 0.0)
+                    throw new IllegalArgumentException(
+                            "The reference TAC cannot be 0 in the fitted "
+                            + "frames");
+
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        final ImageStack [] targets = new ImageStack[MAPS.length];
+        ImagePlus [] res = new ImagePlus[MAPS.length];
+        for (int p = 0; p < res.length; p++) {
+            res[p] = IJ.createImage(imp.getTitle() + " (" + MODELS[model]
+                                    + " " + MAPS[p] + ")", "32-bit",
+                                    dim[0], dim[1], 1, dim[3], 1);
+            res[p].setCalibration(cal);
+            targets[p] = res[p].getStack();
+        }
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        final int n = engine.getSliceSize();
+
+        SliceExecutor.run(dim[3], new SliceTask<Sums, Void>() {
+            @Override
+            public Sums createState() {
+                return new Sums(n, active.getMaxCount());
+            }
+
+            @Override
+            public Void process(int slice, Sums s) {
+                int [] offsets = active.getOffsets(slice);
+                int count = offsets.length;
+                s.clear(count);
+
+                for (int f = 0; f < frames; f++) {
+                    engine.readFrame(slice, f + 1, s.frame);
+                    double d = times.getDuration(f);
+                    for (int k = 0; k < count; k++) {
+                        double v = s.frame[offsets[k]];
+                        // Running integral of the voxel up to the mid time
+                        double area = v * d;
+                        double integral = s.integral[k] + 0.5 * area;
+                        s.integral[k] += area;
+                        if (f < f0) continue;
+
+                        double x, y;
+                        if (model == PATLAK) {
+                            x = ref_integral[f] / ref[f];
+                            y = v / ref[f];
+                        } else {
+                            if (v == 0.0) continue;
+                            x = ref_integral[f] / v;
+                            y = integral / v;
+                        }
+                        int m = ++s.n[k];
+                        double dx = x - s.mx[k];
+                        double dy = y - s.my[k];
+                        s.mx[k] += dx / m;
+                        s.my[k] += dy / m;
+                        s.cxx[k] += dx * (x - s.mx[k]);
+                        s.cxy[k] += dx * (y - s.my[k]);
+                        s.cyy[k] += dy * (y - s.my[k]);
+                    }
+                }
+
+                float [] slope = (float []) targets[SLOPE].getPixels(slice);
+                float [] intercept = (float []) targets[INTERCEPT]
+                                                       .getPixels(slice);
+                float [] r2 = (float []) targets[R2].getPixels(slice);
+                for (int k = 0; k < count; k++) {
+                    int i = offsets[k];
+                    double cxx = s.cxx[k], cxy = s.cxy[k], cyy = s.cyy[k];
+                    if (s.n[k] < 2 || cxx <= 0.0) {
+                        slope[i] = intercept[i] = r2[i] = Float.NaN;
+                        continue;
+                    }
+                    double b = cxy / cxx;
+                    slope[i] = (float) b;
+                    intercept[i] = (float) (s.my[k] - b * s.mx[k]);
+                    // r² is undefined if y does not vary
+                    r2[i] = cyy > 0.0 ? (float) (cxy * cxy / (cxx * cyy))
+                                      : Float.NaN;
+                }
+                return null;
+            }
+        });
+
+        return res;
+    }
+
+    // Per-thread frame buffer and running means and co-moments (one element
+    // per voxel)
+    private static class Sums {
+        final double [] frame;
+        final double [] integral, mx, my, cxx, cxy, cyy;
+        final int [] n;
+
+        Sums(int size, int voxels) {
+            frame = new double[size];
+            integral = new double[voxels];
+            mx = new double[voxels];
+            my = new double[voxels];
+            cxx = new double[voxels];
+            cxy = new double[voxels];
+            cyy = new double[voxels];
+            n = new int[voxels];
+        }
+
+        void clear(int count) {
+            Arrays.fill(integral, 0, count, 0.0);
+            Arrays.fill(mx, 0, count, 0.0);
+            Arrays.fill(my, 0, count, 0.0);
+            Arrays.fill(cxx, 0, count, 0.0);
+            Arrays.fill(cxy, 0, count, 0.0);
+            Arrays.fill(cyy, 0, count, 0.0);
+            Arrays.fill(n, 0, count, 0);
+        }
+    }
+
+}
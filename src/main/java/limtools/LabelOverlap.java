@@ -0,0 +1,183 @@
+package limtools;
+
+/**
+ * <p>
+ * Accumulates the overlap between two label images (e.g., two atlas
+ * segmentations): the volume of every label in each image and the number of
+ * voxels where both images have the same label. Optionally, it also keeps the
+ * whole label co-occurrence (confusion) table.
+ * </p>
+ *
+ * <p>
+ * All the counters are stored in primitive arrays indexed by label, so the
+ * cost of adding a slice only depends on its number of voxels.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class LabelOverlap {
+
+    private final int labels;
+    private final long[] volumeA, volumeB, overlap;
+    // labels * labels elements (row: label in A, column: label in B), or
+    // null if not requested
+    private final long[] confusion;
+
+    /**
+     * Creates an empty accumulator.
+     * @param labels Number of labels, including the background (0).
+     * @param confusion {@code true} to keep the co-occurrence table, which
+     * needs {@code labels * labels} counters.
+     */
+    public LabelOverlap(int labels, boolean confusion) {
+        this.labels = labels;
+        volumeA = new long[labels];
+        volumeB = new long[labels];
+        overlap = new long[labels];
+        this.confusion = confusion ? new long[labels * labels] : null;
+    }
+
+    /**
+     * Creates a copy of an accumulator with room for more labels.
+     * @param other Accumulator to copy.
+     * @param labels New number of labels, not less than the current one.
+     * @param confusion {@code true} to keep the co-occurrence table (the one
+     * in {@code other} is required).
+     */
+    LabelOverlap(LabelOverlap other, int labels, boolean confusion) {
+        this(labels, confusion);
+        System.arraycopy(other.volumeA, 0, volumeA, 0, other.labels);
+        System.arraycopy(other.volumeB, 0, volumeB, 0, other.labels);
+        System.arraycopy(other.overlap, 0, overlap, 0, other.labels);
+        if (confusion)
+            for (int la = 0; la < other.labels; la++)
+                System.arraycopy(other.confusion, la * other.labels,
+                                 this.confusion, la * labels, other.labels);
+    }
+
+    public int getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return {@code true} if the co-occurrence table is available.
+     */
+    public boolean hasConfusion() {
+        return confusion != null;
+    }
+
+    /**
+     * Adds the labels of a slice.
+     * @param a Labels of the first image.
+     * @param b Labels of the second image, for the same voxels.
+     */
+    public void add(int[] a, int[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int la = a[i], lb = b[i];
+            volumeA[la]++;
+            volumeB[lb]++;
+            if (la == lb)
+                overlap[la]++;
+        }
+        if (confusion != null)
+            for (int i = 0; i < a.length; i++)
+                confusion[a[i] * labels + b[i]]++;
+    }
+
+    /**
+     * Adds the contents of another accumulator to this one.
+     * @param other Accumulator with the same number of labels.
+     */
+    public void merge(LabelOverlap other) {
+        for (int l = 0; l < labels; l++) {
+            volumeA[l] += other.volumeA[l];
+            volumeB[l] += other.volumeB[l];
+            overlap[l] += other.overlap[l];
+        }
+        if (confusion != null)
+            for (int i = 0; i < confusion.length; i++)
+                confusion[i] += other.confusion[i];
+    }
+
+    /**
+     * Adds the contents of a smaller accumulator whose labels are an index
+     * into {@code targets} (e.g., the labels present in a slice).
+     * @param other Accumulator with {@code targets.length} labels, and the
+     * co-occurrence table if this one has it.
+     * @param targets Label of this accumulator for each label of
+     * {@code other}.
+     */
+    void merge(LabelOverlap other, int[] targets) {
+        for (int l = 0; l < other.labels; l++) {
+            int t = targets[l];
+            volumeA[t] += other.volumeA[l];
+            volumeB[t] += other.volumeB[l];
+            overlap[t] += other.overlap[l];
+        }
+        if (confusion != null)
+            for (int la = 0; la < other.labels; la++) {
+                int row = targets[la] * labels;
+                int from = la * other.labels;
+                for (int lb = 0; lb < other.labels; lb++)
+                    confusion[row + targets[lb]] += other.confusion[from + lb];
+            }
+    }
+
+    /**
+     * @return Number of voxels with the given label in the first image.
+     */
+    public long getVolumeA(int label) {
+        return volumeA[label];
+    }
+
+    /**
+     * @return Number of voxels with the given label in the second image.
+     */
+    public long getVolumeB(int label) {
+        return volumeB[label];
+    }
+
+    /**
+     * @return Number of voxels with the given label in both images.
+     */
+    public long getOverlap(int label) {
+        return overlap[label];
+    }
+
+    /**
+     * @return Number of voxels with the given label in any of the images.
+     */
+    public long getUnion(int label) {
+        return volumeA[label] + volumeB[label] - overlap[label];
+    }
+
+    /**
+     * @return Jaccard index of the given label (NaN if it is not present in
+     * any of the images).
+     */
+    public double getJaccard(int label) {
+        return (double) overlap[label] / getUnion(label);
+    }
+
+    /**
+     * @return Dice coefficient of the given label (NaN if it is not present
+     * in any of the images).
+     */
+    public double getDice(int label) {
+        return 2.0 * overlap[label] / (volumeA[label] + volumeB[label]);
+    }
+
+    /**
+     * @param labelA Label in the first image.
+     * @param labelB Label in the second image.
+     * @return Number of voxels with {@code labelA} in the first image and
+     * {@code labelB} in the second one.
+     * @throws IllegalStateException if the table was not requested.
+     */
+    public long getConfusion(int labelA, int labelB) {
+        if (confusion == null)
+            throw new IllegalStateException("No co-occurrence table");
+        return confusion[labelA * labels + labelB];
+    }
+}
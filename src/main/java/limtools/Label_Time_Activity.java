@@ -0,0 +1,205 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import java.util.Arrays;
+
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * This plugin computes the time-activity statistics (mean, SD, minimum,
+ * maximum and number of voxels for each frame) of every region of an integer
+ * label image (e.g., an atlas) in a single pass over the dynamic image. The
+ * label image must have the same spatial dimensions as the dynamic one.
+ * Label 0 is the background and, as in {@link Measure_Time_Activity}, masked
+ * voxels are ignored. The partial result of each slice only holds the labels
+ * present in it, so large atlases do not need one full accumulator per
+ * slice.
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Label_Time_Activity implements PlugIn {
+
+    @Override
+    public void run(String arg0) {
+
+        int [] images = WindowManager.getIDList();
+
+        // If there are no images opened or there are not enough of them
+        if (images == null || images.length < 2) {
+            IJ.error("Need at least one dynamic image and one label image");
+            return;
+        }
+
+        // Create a list of open images
+        String [] open_images = new String[images.length];
+        for (int i = 0; i < images.length; i++)
+            open_images[i] = WindowManager.getImage(images[i]).getTitle();
+
+        GenericDialog gd = new GenericDialog("Choose dynamic and label images");
+        gd.addChoice("Dynamic image:", open_images, open_images[0]);
+        gd.addChoice("Labels:", open_images, open_images[1]);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        ImagePlus dynamic = WindowManager.getImage(gd.getNextChoice());
+        ImagePlus labels = WindowManager.getImage(gd.getNextChoice());
+
+        if (dynamic.getDimensions()[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        TACStatistics stats;
+        try {
+            stats = measure(dynamic, labels);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        // Display the results in a ResultsTable object, one row per label
+        // and frame
+        ResultsTable rt = Analyzer.getResultsTable();
+        for (int l = 1; l < stats.getGroups(); l++) {
+            if (stats.getCount(l) == 0) continue;
+            for (int i = 0; i < stats.getFrames(); i++) {
+                rt.incrementCounter();
+                rt.addValue("Label", l);
+                rt.addValue("Frame", i + 1);
+                rt.addValue("Activity", stats.getMean(l, i));
+                rt.addValue("SD", stats.getSD(l, i));
+                rt.addValue("Min", stats.getMin(l, i));
+                rt.addValue("Max", stats.getMax(l, i));
+                rt.addValue("Voxels", stats.getCount(l));
+            }
+        }
+        rt.showRowNumbers(false);
+        rt.show("Results");
+    }
+
+    /**
+     * Computes the TAC statistics of every label in a single pass.
+     * @param dynamic Dynamic image (HyperStack).
+     * @param labels Label image with the same spatial dimensions.
+     * @return The statistics, where group {@code l} holds label {@code l}
+     * (group 0 is the background and is left empty).
+     * @throws IllegalArgumentException if the dimensions do not agree or the
+     * labels are not valid.
+     */
+    public static TACStatistics measure(ImagePlus dynamic, ImagePlus labels) {
+
+        final int [] dim = dynamic.getDimensions();
+        int [] dim_labels = labels.getDimensions();
+        if (dim[0] != dim_labels[0] || dim[1] != dim_labels[1] ||
+            dim[3] != dim_labels[3]) {
+            throw new IllegalArgumentException(
+                    "Dynamic image and labels spatial dimensions do not agree");
+        }
+
+        // Find the number of labels first (cheap: a single 3D pass)
+        final ImageStack label_stack = labels.getStack();
+        int [] temp = new int[dim[0] * dim[1]];
+        int max = 0;
+        for (int slice = 1; slice <= dim[3]; slice++)
+            max = Math.max(max, Utils.readLabels(label_stack, slice, temp));
+        if (max > Utils.MAX_LABEL)
+            throw new IllegalArgumentException("Labels cannot be greater than "
+                                               + Utils.MAX_LABEL);
+        final int groups = max + 1;
+
+        final TACEngine engine = new TACEngine(dynamic);
+        final ActiveVoxels active = ActiveVoxels.get(dynamic);
+        final int frames = dim[4];
+        final TACStatistics stats = new TACStatistics(groups, frames);
+
+        SliceExecutor.reduce(dim[3], new SliceTask<SliceBuffers, Partial>() {
+            @Override
+            public SliceBuffers createState() {
+                return new SliceBuffers(engine, active.getMaxCount(), groups);
+            }
+
+            @Override
+            public Partial process(int slice, SliceBuffers state) {
+                int [] l = state.labels;
+                int [] index = state.index;
+                double [] buffer = state.tacs;
+                if (Utils.readLabels(label_stack, slice, l) == 0)
+                    return null; // Only background
+                // Only the unmasked TACs are read
+                int [] offsets = active.getOffsets(slice);
+                // Dense index of the labels present in the slice, so the
+                // partial result only holds those
+                int n = 0;
+                for (int k = 0; k < offsets.length; k++) {
+                    int label = l[offsets[k]];
+                    if (label != 0 && index[label] < 0) {
+                        index[label] = n;
+                        state.present[n++] = label;
+                    }
+                }
+                if (n == 0)
+                    return null;
+                Partial partial = new Partial(
+                        new TACStatistics(n, frames),
+                        Arrays.copyOf(state.present, n));
+                engine.readVoxels(slice, offsets, buffer);
+                for (int k = 0; k < offsets.length; k++) {
+                    int label = l[offsets[k]];
+                    if (label != 0)
+                        partial.stats.add(index[label], buffer, k * frames);
+                }
+                for (int label : partial.labels)
+                    index[label] = -1;
+                return partial;
+            }
+        }, new Reducer<Partial>() {
+            @Override
+            public void reduce(int slice, Partial partial) {
+                if (partial != null)
+                    stats.merge(partial.stats, partial.labels);
+            }
+        });
+
+        return stats;
+    }
+
+    // Per-thread buffers. index maps each label to its position in the
+    // partial result of the current slice (-1 if not present), and present
+    // holds the labels in that order.
+    private static class SliceBuffers {
+        final double [] tacs;
+        final int [] labels;
+        final int [] index, present;
+
+        SliceBuffers(TACEngine engine, int voxels, int groups) {
+            tacs = engine.createVoxelBuffer(voxels);
+            labels = new int[engine.getSliceSize()];
+            index = new int[groups];
+            Arrays.fill(index, -1);
+            present = new int[Math.min(groups, engine.getSliceSize())];
+        }
+    }
+
+    // Statistics of the labels present in a slice
+    private static class Partial {
+        final TACStatistics stats;
+        final int [] labels;
+
+        Partial(TACStatistics stats, int [] labels) {
+            this.stats = stats;
+            this.labels = labels;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Virtual stack backed by a memory-mapped raw file, for dynamic studies that
+ * do not fit in the heap. The planes are stored one after the other in the
+ * usual HyperStack order (channel, slice, frame), as 8-bit, 16-bit or 32-bit
+ * (float) little-endian values.
+ * </p>
+ *
+ * <p>
+ * {@link #getPixels(int)} returns a copy of the plane and
+ * {@link #setPixels(Object, int)} writes it back into the file, so the
+ * plugins can read and modify the stack while only the planes being
+ * processed are held in the heap. {@link TACEngine} writes modified planes
+ * back automatically.
+ * </p>
+ *
+ * <p>
+ * When a slice is read through a {@link TACEngine}, the pages of the next
+ * slab (a configurable number of slices, with all their frames) are loaded
+ * by a background thread, so disk reads overlap the computation.
+ * </p>
+ *
+ * <p>
+ * The images created with {@link #createImage(String)} close the stack (flush
+ * the changes and release the file and the background thread) when they are
+ * closed. Stacks used without a window must be closed with {@link #close()}.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class MappedStack extends VirtualStack implements Closeable {
+
+    // Size of each mapping (whole planes only)
+    private static final long WINDOW = 1L << 30;
+    private static final int PAGE = 4096;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final boolean writable;
+    private final int bitDepth, bytes, channels, slices, frames;
+    private final long offset, planeBytes;
+    private final int planesPerWindow;
+    private final MappedByteBuffer[] windows;
+
+    // Number of slices loaded ahead, and last slice already requested
+    // (guarded by this)
+    private int slab = 4;
+    private int prefetched = 0;
+    private Thread prefetcher;
+    private int prefetchFrom, prefetchTo;
+    private boolean closed = false;
+
+    private MappedStack(File file, boolean create, boolean writable,
+                        long offset, int width, int height, int bitDepth,
+                        int channels, int slices, int frames)
+            throws IOException {
+        super(width, height, null, file.getParent());
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            throw new IllegalArgumentException("Unsupported bit depth: "
+                                               + bitDepth);
+        if (width < 1 || height < 1 || channels < 1 || slices < 1
+                || frames < 1 || offset < 0)
+            throw new IllegalArgumentException("Wrong dimensions");
+        this.file = file;
+        this.writable = writable;
+        this.bitDepth = bitDepth;
+        this.bytes = bitDepth / 8;
+        this.channels = channels;
+        this.slices = slices;
+        this.frames = frames;
+        this.offset = offset;
+        this.planeBytes = (long) width * height * bytes;
+        this.planesPerWindow = (int) Math.max(1, WINDOW / planeBytes);
+
+        int planes = channels * slices * frames;
+        long size = offset + planes * planeBytes;
+        raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            if (create)
+                raf.setLength(size);
+            else if (raf.length() < size)
+                throw new IOException("File too short for " + planes
+                                      + " planes of " + width + "x" + height
+                                      + " (" + bitDepth + "-bit)");
+            windows = new MappedByteBuffer[(planes + planesPerWindow - 1)
+                                           / planesPerWindow];
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new raw file filled with zeros and maps it (read-write).
+     * @param file Output file (overwritten).
+     * @param width Width.
+     * @param height Height.
+     * @param bitDepth 8, 16 or 32.
+     * @param channels Number of channels.
+     * @param slices Number of slices.
+     * @param frames Number of frames.
+     * @return The new stack.
+     * @throws IOException if the file cannot be created.
+     */
+    public static MappedStack create(File file, int width, int height,
+                                     int bitDepth, int channels, int slices,
+                                     int frames) throws IOException {
+        return new MappedStack(file, true, true, 0, width, height, bitDepth,
+                               channels, slices, frames);
+    }
+
+    /**
+     * Maps an existing raw file.
+     * @param file Raw file.
+     * @param writable {@code true} to allow changes (written to the file).
+     * @param offset Offset of the first plane, in bytes.
+     * @param width Width.
+     * @param height Height.
+     * @param bitDepth 8, 16 or 32.
+     * @param channels Number of channels.
+     * @param slices Number of slices.
+     * @param frames Number of frames.
+     * @return The stack.
+     * @throws IOException if the file cannot be opened or is too short.
+     */
+    public static MappedStack open(File file, boolean writable, long offset,
+                                   int width, int height, int bitDepth,
+                                   int channels, int slices, int frames)
+            throws IOException {
+        return new MappedStack(file, false, writable, offset, width, height,
+                               bitDepth, channels, slices, frames);
+    }
+
+    /**
+     * @param title Title of the image.
+     * @return A HyperStack that shows this stack. The stack is closed when
+     * the image is closed.
+     */
+    public ImagePlus createImage(String title) {
+        final ImagePlus imp = new ImagePlus(title, this);
+        imp.setDimensions(channels, slices, frames);
+        imp.setOpenAsHyperStack(true);
+        ImagePlus.addImageListener(new ImageListener() {
+            @Override
+            public void imageOpened(ImagePlus opened) {
+            }
+
+            @Override
+            public void imageClosed(ImagePlus closed) {
+                if (closed != imp) return;
+                ImagePlus.removeImageListener(this);
+                try {
+                    close();
+                } catch (IOException e) {
+                    IJ.log("Cannot close " + file + ": " + e.getMessage());
+                }
+            }
+
+            @Override
+            public void imageUpdated(ImagePlus updated) {
+            }
+        });
+        return imp;
+    }
+
+    /**
+     * @return {@code true} if the changes are written to the file.
+     */
+    public boolean isWritable() {
+        return writable;
+    }
+
+    /**
+     * Sets how many slices (with all their frames) are loaded ahead of the
+     * slice being read.
+     * @param slices Number of slices; 0 disables the prefetching.
+     */
+    public synchronized void setSlab(int slices) {
+        slab = Math.max(0, slices);
+    }
+
+    public synchronized int getSlab() {
+        return slab;
+    }
+
+    // Mapping that holds the plane, and position of the plane inside it
+    private synchronized ByteBuffer _plane(int n) throws IOException {
+        if (closed)
+            throw new IllegalStateException("The image mapped from "
+                                            + file.getName() + " is closed");
+        if (n < 1 || n > getSize())
+            throw new IllegalArgumentException("Plane " + n
+                                               + " out of range");
+        int w = (n - 1) / planesPerWindow;
+        if (windows[w] == null) {
+            int planes = Math.min(planesPerWindow,
+                                  getSize() - w * planesPerWindow);
+            windows[w] = raf.getChannel().map(writable
+                    ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY,
+                    offset + w * planesPerWindow * planeBytes,
+                    planes * planeBytes);
+        }
+        // Each caller gets its own position and order
+        ByteBuffer b = windows[w].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position((int) (((n - 1) % planesPerWindow) * planeBytes));
+        return b;
+    }
+
+    @Override
+    public Object getPixels(int n) {
+        int size = getWidth() * getHeight();
+        try {
+            ByteBuffer b = _plane(n);
+            switch (bitDepth) {
+            case 8:
+                byte[] p8 = new byte[size];
+                b.get(p8);
+                return p8;
+            case 16:
+                short[] p16 = new short[size];
+                b.asShortBuffer().get(p16);
+                return p16;
+            default:
+                float[] p32 = new float[size];
+                b.asFloatBuffer().get(p32);
+                return p32;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes a plane into the file.
+     * @throws IllegalStateException if the stack is read-only.
+     */
+    @Override
+    public void setPixels(Object pixels, int n) {
+        if (!writable)
+            throw new IllegalStateException("Read-only stack");
+        try {
+            ByteBuffer b = _plane(n);
+            if (pixels instanceof byte[] && bitDepth == 8)
+                b.put((byte[]) pixels);
+            else if (pixels instanceof short[] && bitDepth == 16)
+                b.asShortBuffer().put((short[]) pixels);
+            else if (pixels instanceof float[] && bitDepth == 32)
+                b.asFloatBuffer().put((float[]) pixels);
+            else
+                throw new IllegalArgumentException("Wrong pixel type");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Object pixels = getPixels(n);
+        if (pixels instanceof byte[])
+            return new ByteProcessor(getWidth(), getHeight(),
+                                     (byte[]) pixels, null);
+        if (pixels instanceof short[])
+            return new ShortProcessor(getWidth(), getHeight(),
+                                      (short[]) pixels, null);
+        return new FloatProcessor(getWidth(), getHeight(), (float[]) pixels,
+                                  null);
+    }
+
+    @Override
+    public int getSize() {
+        return channels * slices * frames;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    /**
+     * Planes cannot be deleted, since they are stored in a file of fixed
+     * size.
+     * @throws IllegalStateException always.
+     */
+    @Override
+    public void deleteSlice(int n) {
+        throw new IllegalStateException("Cannot delete plane " + n
+                + " of the image mapped from " + file.getName()
+                + ": duplicate the image first");
+    }
+
+    /**
+     * Asks the background thread to load the next slab after a slice (all
+     * its channels and frames), unless it has already been requested.
+     * @param slice Slice (1-based) being read.
+     */
+    public synchronized void prefetch(int slice) {
+        // Reading far behind the last slab: a new pass over the stack
+        if (slice < prefetched - 2 * slab)
+            prefetched = slice;
+        int from = Math.max(slice + 1, prefetched + 1);
+        int to = Math.min(slices, slice + slab);
+        if (from > to) return;
+        prefetched = to;
+        prefetchFrom = from;
+        prefetchTo = to;
+        if (prefetcher == null) {
+            prefetcher = new Thread("MappedStack prefetch") {
+                @Override
+                public void run() {
+                    _prefetchLoop();
+                }
+            };
+            prefetcher.setDaemon(true);
+            prefetcher.start();
+        }
+        notifyAll();
+    }
+
+    private void _prefetchLoop() {
+        try {
+            while (true) {
+                int from, to;
+                synchronized (this) {
+                    while (prefetchFrom == 0)
+                        wait();
+                    from = prefetchFrom;
+                    to = prefetchTo;
+                    prefetchFrom = prefetchTo = 0;
+                }
+                // Touch one byte per page to bring it into memory
+                for (int t = 1; t <= frames; t++)
+                    for (int z = from; z <= to; z++)
+                        for (int c = 1; c <= channels; c++) {
+                            int n = (t - 1) * channels * slices
+                                    + (z - 1) * channels + c;
+                            ByteBuffer b = _plane(n);
+                            int start = b.position();
+                            for (long i = 0; i < planeBytes; i += PAGE)
+                                b.get(start + (int) i);
+                        }
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (IllegalStateException e) {
+            // Closed
+        } catch (IOException e) {
+            // Prefetching is only a hint: the reads will report the error
+        }
+    }
+
+    /**
+     * Flushes the changes to disk and releases the file. The stack cannot be
+     * used afterwards. Closing it again has no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (prefetcher != null)
+                prefetcher.interrupt();
+            if (writable)
+                for (MappedByteBuffer w : windows)
+                    if (w != null)
+                        w.force();
+        }
+        raf.close();
+    }
+}
@@ -2,20 +2,27 @@ package limtools;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
+import limtools.SliceExecutor.SliceTask;
+
 /**
  * This plugin masks a dynamic image (stack with frames - HyperStack) using
- * a mask of the same spatial dimensions. All voxels set to zero in the mask
- * will be set to zero in all the frames of the dynamic image.
+ * a mask of the same spatial dimensions. By default, the voxels set to zero in
+ * the mask are set to zero in all the frames of the dynamic image. The mask
+ * can also be attached to the dynamic image instead (see {@link VoxelMask}):
+ * the data is kept intact and the other plugins simply ignore those voxels.
  * 
  * @author José María Mateos - jmmateos@hggm.es
  *
  */
 public class Mask_Dynamic_Image implements PlugIn {
+    // The destructive mode is the default, as in the macros recorded before
+    // the mask could be attached
+    private static final String[] MODES = {"Set masked voxels to 0",
+                                           "Attach mask (keep data)"};
     private ImagePlus dynamic, mask;
     
     @Override
@@ -37,6 +44,7 @@ public class Mask_Dynamic_Image implements PlugIn {
         GenericDialog gd = new GenericDialog("Choose dynamic image and mask");
         gd.addChoice("Dynamic image:", open_images, open_images[0]);
         gd.addChoice("Mask:", open_images, open_images[1]);
+        gd.addChoice("Mode:", MODES, MODES[0]);
         gd.showDialog();
                 
         // If user canceled, return
@@ -44,41 +52,86 @@ public class Mask_Dynamic_Image implements PlugIn {
         
         dynamic = WindowManager.getImage(gd.getNextChoice());
         mask = WindowManager.getImage(gd.getNextChoice());
+        boolean attach = gd.getNextChoiceIndex() == 1;
+        
+        try {
+            if (attach)
+                attach(dynamic, mask);
+            else
+                mask(dynamic, mask);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+        }
+    } // end run
+    
+    /**
+     * Attaches a mask to the dynamic image without modifying its data. Voxels
+     * with a 0 value in the mask are ignored by the other plugins.
+     * @param dynamic Dynamic image (HyperStack).
+     * @param mask Static mask with the same spatial dimensions.
+     * @return The attached mask.
+     * @throws IllegalArgumentException if the dimensions do not agree.
+     */
+    public static VoxelMask attach(ImagePlus dynamic, ImagePlus mask) {
+        _checkDimensions(dynamic, mask);
+        VoxelMask voxels = VoxelMask.fromImage(mask);
+        voxels.attach(dynamic);
+        return voxels;
+    }
+    
+    /**
+     * Sets to zero, in all the frames of the dynamic image, every voxel that
+     * has a 0 value in the mask.
+     * @param dynamic Dynamic image (HyperStack).
+     * @param mask Static mask with the same spatial dimensions.
+     * @throws IllegalArgumentException if the dimensions do not agree or the
+     * image is a read-only virtual stack.
+     */
+    public static void mask(ImagePlus dynamic, ImagePlus mask) {
+        _checkDimensions(dynamic, mask);
+        apply(dynamic, VoxelMask.fromImage(mask));
+    }
+    
+    /**
+     * Sets to zero, in all the frames of the dynamic image, every voxel that
+     * is not active in the given mask.
+     * @param dynamic Dynamic image (HyperStack).
+     * @param mask Mask with the same spatial dimensions.
+     * @throws IllegalArgumentException if the dimensions do not agree or the
+     * image is a read-only virtual stack.
+     */
+    public static void apply(ImagePlus dynamic, final VoxelMask mask) {
+        if (!mask.matches(dynamic))
+            throw new IllegalArgumentException(
+                    "Dynamic image and mask spatial dimensions do not agree");
+        
+        // Mask the original image
+        final TACEngine engine = new TACEngine(dynamic);
+        if (!engine.isWritable())
+            throw new IllegalArgumentException(
+                    "Virtual stacks cannot be modified in place");
+        SliceExecutor.run(engine.getSlices(), new SliceTask<Void, Void>() {
+            @Override
+            public Void process(int slice, Void state) {
+                engine.clearSlice(slice, mask);
+                return null;
+            }
+        });
         
-        // Check if the dimensions agree
+        ActiveVoxels.invalidate(dynamic);
+        dynamic.updateImage();
+    }
+    
+    // Checks if the spatial dimensions agree
+    private static void _checkDimensions(ImagePlus dynamic, ImagePlus mask) {
         int [] dim_dynamic = dynamic.getDimensions();
         int [] dim_mask = mask.getDimensions();
         
         if (dim_dynamic[0] != dim_mask[0] || 
             dim_dynamic[1] != dim_mask[1] ||
             dim_dynamic[3] != dim_mask[3]) {
-            IJ.error("Dynamic image and mask spatial dimensions do not agree");
-            return;
+            throw new IllegalArgumentException(
+                    "Dynamic image and mask spatial dimensions do not agree");
         }
-        
-        // Mask the original image
-        ImageStack dyn_stack = dynamic.getStack();
-        ImageStack mask_stack = mask.getStack();
-        
-        for (int slice = 1; slice <= dim_dynamic[3]; slice++) {
-            // Update progress bar
-            IJ.showProgress(slice - 1, dim_dynamic[3]);
-            for (int x = 0; x < dim_dynamic[0]; x++) {
-                for (int y = 0; y < dim_dynamic[1]; y++) {
-                    // Voxel masked?
-                    boolean masked = 
-                            (int) mask_stack.getVoxel(x, y, slice - 1) == 0;
-                    
-                    if (masked) {
-                        for (int f = 1; f <= dim_dynamic[4]; f++) {
-                            int stackindex = dynamic.getStackIndex(1, slice, f);
-                            dyn_stack.setVoxel(x, y, stackindex - 1, 0.0);                            
-                        } // end f                        
-                    }
-                } // end y
-            } // end x
-        } // end z
-        
-        dynamic.updateImage();
-    } // end run
+    }
 }
@@ -2,17 +2,17 @@ package limtools;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 
-import static limtools.Utils.isMasked;
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
 
 /**
  * Shows the mean time-activity values for each frame for the unmasked voxels
- * in the current dynamic image.
+ * in the current dynamic image, together with their standard deviation,
+ * minimum, maximum and the number of voxels used.
  * 
  * @author José María Mateos - jmmateos@hggm.es
  */
@@ -20,10 +20,7 @@ import static limtools.Utils.isMasked;
 public class Measure_Time_Activity implements PlugIn {
 
     private ImagePlus imp;
-    private ImageStack stack;
-    private Calibration cal;
     private int dim[];
-    private double CALZERO;
     
     @Override
     public void run(String arg0) {
@@ -53,49 +50,79 @@ public class Measure_Time_Activity implements PlugIn {
             return;
         }
         
-        // Fill TAC
-        double [] tac = new double[dim[4]]; 
-        double [] temp;
-        stack = imp.getStack();      
-        cal = imp.getCalibration();
-        CALZERO = cal.getCValue(0.0);        
-        int total = 0;
-        
-        
-        for (int slice = 1; slice <= dim[3]; slice++) {
-            // Update progress bar
-            IJ.showProgress(slice - 1, dim[3]);
-            for (int x = 0; x < dim[0]; x++) {
-                for (int y = 0; y < dim[1]; y++) {
-                    temp = _getTAC(x, y, slice);
-                    if (!isMasked(temp, CALZERO)) {
-                        total++;
-                        for (int i = 0; i < tac.length; i++) {
-                            tac[i] += temp[i];                        
-                        }                        
-                    }
-                }
-            }            
+        TACStatistics stats = measureStatistics(imp);
+        // As in Label Time Activity, empty regions are not reported
+        if (stats.getCount(0) == 0) {
+            IJ.error("There are no unmasked voxels to measure");
+            return;
         }
         
         // Display the results in a ResultsTable object
         ResultsTable rt = Analyzer.getResultsTable();
-        for (int i = 0; i < tac.length; i++) {            
-            tac[i] /= (double) total;
+        for (int i = 0; i < dim[4]; i++) {            
             rt.incrementCounter();
             rt.addValue("Frame", i + 1);
-            rt.addValue("Activity", tac[i]);
+            rt.addValue("Activity", stats.getMean(0, i));
+            rt.addValue("SD", stats.getSD(0, i));
+            rt.addValue("Min", stats.getMin(0, i));
+            rt.addValue("Max", stats.getMax(0, i));
+            rt.addValue("Voxels", stats.getCount(0));
         }  
         rt.showRowNumbers(false);
         rt.show("Results");
     }
     
-    private double [] _getTAC(int x, int y, int slice) {
-        double [] tac = new double[dim[4]];
-        for (int f = 1; f <= dim[4]; f++) {
-            int index = imp.getStackIndex(1, slice, f);
-            tac[f - 1] = cal.getCValue(stack.getVoxel(x, y, index - 1));
-        }
+    /**
+     * Computes the mean time-activity curve of the unmasked voxels.
+     * @param imp Dynamic image (HyperStack).
+     * @return The mean value for each frame.
+     */
+    public static double [] measure(ImagePlus imp) {
+        TACStatistics stats = measureStatistics(imp);
+        double [] tac = new double[stats.getFrames()];
+        for (int i = 0; i < tac.length; i++)
+            tac[i] = stats.getMean(0, i);
         return tac;
     }
+    
+    /**
+     * Computes the per-frame statistics (mean, SD, minimum, maximum and
+     * number of voxels) of the unmasked voxels in a single pass.
+     * @param imp Dynamic image (HyperStack).
+     * @return The statistics, in group 0.
+     */
+    public static TACStatistics measureStatistics(ImagePlus imp) {
+        
+        int [] dim = imp.getDimensions();
+        
+        // Each slice returns its own partial statistics, which are merged
+        // in slice order
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        final int frames = dim[4];
+        final TACStatistics stats = new TACStatistics(1, frames);
+        SliceExecutor.reduce(dim[3], new SliceTask<double[], TACStatistics>() {
+            @Override
+            public double[] createState() {
+                return engine.createVoxelBuffer(active.getMaxCount());
+            }
+
+            @Override
+            public TACStatistics process(int slice, double[] buffer) {
+                TACStatistics partial = new TACStatistics(1, frames);
+                // Only the unmasked TACs are read
+                int[] offsets = active.getOffsets(slice);
+                engine.readVoxels(slice, offsets, buffer);
+                for (int k = 0; k < offsets.length; k++)
+                    partial.add(0, buffer, k * frames);
+                return partial;
+            }
+        }, new Reducer<TACStatistics>() {
+            @Override
+            public void reduce(int slice, TACStatistics partial) {
+                stats.merge(partial);
+            }
+        });
+        return stats;
+    }
 }
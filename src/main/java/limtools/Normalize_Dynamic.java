@@ -2,65 +2,348 @@ package limtools;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.SaveDialog;
 import ij.measure.Calibration;
+import ij.plugin.filter.Analyzer;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.ImageProcessor;
 
-import static limtools.Utils.getTAC;
-import static limtools.Utils.isMasked;
+import java.io.File;
+import java.io.IOException;
+
+import limtools.SliceExecutor.SliceTask;
+
 import static limtools.Utils.getMax;
 
 /**
- * This plugin normalizes each time-activity curve (TAC) its maximum value. This
- * operation can be used to remove the effect of the amplitude in any given
- * dynamic sequence.
- * 
+ * <p>
+ * This plugin normalizes each time-activity curve (TAC). This operation can be
+ * used to remove the effect of the amplitude in any given dynamic sequence.
+ * The available modes are:
+ * </p>
+ *
+ * <ul>
+ * <li>Maximum: each TAC is divided by its maximum value.</li>
+ * <li>Area under the curve: each TAC is divided by the sum of its values
+ * weighted by the frame durations (see {@link FrameTimes}), or by the plain
+ * sum if the timing of the image is not known.</li>
+ * <li>Mean: each TAC is divided by its (duration-weighted) mean value.</li>
+ * <li>Reference TAC: each frame is divided by the value of a reference TAC
+ * (e.g., the mean TAC of a reference region) in that frame.</li>
+ * <li>Z-score: the mean of each TAC is subtracted and the result is divided
+ * by its standard deviation.</li>
+ * </ul>
+ *
+ * <p>
+ * TACs that cannot be normalized (a maximum, area or mean that is not
+ * positive, or a standard deviation of 0) become 0 in every frame, so no
+ * infinite or NaN values are written (8 and 16-bit images would store them
+ * as 0 or as the maximum of the type).
+ * </p>
+ *
+ * <p>
+ * Each slice is read, normalized and written back in a single pass over the
+ * unmasked voxels. The result can be stored in place or in a new 32-bit
+ * image, since normalized values are usually truncated by 8 and 16-bit
+ * images. For virtual stacks, the new image is a {@link MappedStack} backed by
+ * a raw file chosen by the user, so the result does not need to fit in the
+ * heap either.
+ * </p>
+ *
  * @author José María Mateos - jmmateos@hggm.es
- * 
+ *
  */
 public class Normalize_Dynamic implements PlugInFilter {
 
+    /** Normalization modes. */
+    public static final int MAX = 0, AUC = 1, MEAN = 2, REFERENCE = 3,
+                            ZSCORE = 4;
+
+    private static final String[] MODES = {"Maximum", "Area under the curve",
+                                           "Mean", "Reference TAC",
+                                           "Z-score"};
+
     private ImagePlus imp;
-    private ImageStack is;
     private int[] dim;
-    private Calibration cal;
 
     @Override
     public void run(ImageProcessor ip) {
-        
-        is = imp.getStack();        
-        cal = imp.getCalibration();        
-        double calzero = cal.getCValue(0.0);
-        
-        for (int z = 0; z < dim[3]; z++) {
-            // Update progress bar indicator
-            IJ.showProgress(z, dim[3]);
-            for (int x = 0; x < dim[0]; x++) {
-                for (int y = 0; y < dim[1]; y++) {
-                    // Obtain the TAC
-                    double [] tac = getTAC(x, y, z + 1, dim[4], imp, is, cal);
-                    // Ignore masked voxels                                          
-                    if(!isMasked(tac, calzero)) {
-                        double m = getMax(tac);
-                        // Set the normalized values for each non-masked TAC
-                        for (int f = 1; f <= dim[4]; f++) {
-                            int stackindex = imp.getStackIndex(1, z + 1, f);
-                            double v = cal.getCValue(is.getVoxel(
-                                    x, y, stackindex - 1)) / m;
-                            is.setVoxel(x, y, stackindex - 1, v);                            
-                        }                        
-                    }                    
+
+        GenericDialog gd = new GenericDialog("Normalize dynamic");
+        gd.addChoice("Mode:", MODES, MODES[MAX]);
+        gd.addCheckbox("Create new 32-bit image", false);
+        gd.addMessage("Reference TAC (Activity column of the Results table,\n"
+                      + "or a comma-separated list of values):");
+        gd.addNumericField("Label (for Label Time Activity):", 1, 0);
+        gd.addStringField("Values:", "", 30);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int mode = gd.getNextChoiceIndex();
+        boolean create = gd.getNextBoolean();
+        int label = (int) gd.getNextNumber();
+        String values = gd.getNextString().trim();
+
+        ImagePlus res;
+        try {
+            double[] reference = null;
+            if (mode == REFERENCE)
+                reference = values.isEmpty()
+                        ? Utils.readTAC(Analyzer.getResultsTable(), label,
+                                        dim[4])
+                        : Utils.parseTAC(values, dim[4]);
+            if (create && imp.getStack().isVirtual()) {
+                SaveDialog sd = new SaveDialog("Save normalized raw image",
+                                               imp.getTitle() + "_normalized",
+                                               ".raw");
+                if (sd.getFileName() == null) return;
+                res = normalize(imp, mode, reference,
+                                new File(sd.getDirectory(), sd.getFileName()));
+            } else {
+                res = normalize(imp, mode, reference, create);
+            }
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        } catch (IOException e) {
+            IJ.error("Cannot create the output file: " + e.getMessage());
+            return;
+        }
+
+        if (res != imp)
+            res.show();
+    }
+
+    /**
+     * Normalizes, in place, each unmasked TAC of the image with its maximum
+     * value.
+     * @param imp Dynamic image (HyperStack).
+     */
+    public static void normalize(ImagePlus imp) {
+        normalize(imp, MAX, null, false);
+    }
+
+    /**
+     * Normalizes each unmasked TAC of the image. The duration of the frames
+     * is taken from {@link FrameTimes#fromImage(ImagePlus)}.
+     * @param imp Dynamic image (HyperStack).
+     * @param mode One of {@link #MAX}, {@link #AUC}, {@link #MEAN},
+     * {@link #REFERENCE} or {@link #ZSCORE}.
+     * @param reference Reference TAC (one value per frame) for
+     * {@link #REFERENCE}, ignored otherwise.
+     * @param create {@code true} to store the result in a new 32-bit image,
+     * {@code false} to modify {@code imp}.
+     * @return The normalized image ({@code imp} if not {@code create}).
+     * @throws IllegalArgumentException if the reference TAC is not valid, or
+     * {@code imp} is a read-only virtual stack and not {@code create}.
+     */
+    public static ImagePlus normalize(ImagePlus imp, int mode,
+                                      double[] reference, boolean create) {
+        return _normalize(imp, mode, reference,
+                          create ? _createTarget(imp) : imp);
+    }
+
+    /**
+     * Normalizes each unmasked TAC of the image into a new 32-bit image
+     * backed by a raw file (see {@link MappedStack}), for images that do not
+     * fit in memory.
+     * @param imp Dynamic image (HyperStack).
+     * @param mode One of {@link #MAX}, {@link #AUC}, {@link #MEAN},
+     * {@link #REFERENCE} or {@link #ZSCORE}.
+     * @param reference Reference TAC (one value per frame) for
+     * {@link #REFERENCE}, ignored otherwise.
+     * @param output Raw file for the result (overwritten).
+     * @return The normalized image.
+     * @throws IllegalArgumentException if the reference TAC is not valid.
+     * @throws IOException if the output file cannot be created.
+     */
+    public static ImagePlus normalize(ImagePlus imp, int mode,
+                                      double[] reference, File output)
+            throws IOException {
+        return _normalize(imp, mode, reference, _createTarget(imp, output));
+    }
+
+    private static ImagePlus _normalize(ImagePlus imp, int mode,
+                                        double[] reference,
+                                        final ImagePlus res) {
+
+        int[] dim = imp.getDimensions();
+        final int frames = dim[4];
+        final Normalizer normalizer = new Normalizer(imp, mode, reference);
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        boolean create = res != imp;
+        final TACEngine target = create ? new TACEngine(res) : engine;
+        if (!target.isWritable())
+            throw new IllegalArgumentException(
+                    "Virtual stacks cannot be modified in place");
+
+        SliceExecutor.run(dim[3], new SliceTask<double[], Void>() {
+            @Override
+            public double[] createState() {
+                return engine.createVoxelBuffer(active.getMaxCount());
+            }
+
+            @Override
+            public Void process(int slice, double[] buffer) {
+                // Obtain only the unmasked TACs of the slice (masked voxels
+                // are left untouched)
+                int[] offsets = active.getOffsets(slice);
+                engine.readVoxels(slice, offsets, buffer);
+                for (int offset = 0; offset < offsets.length * frames;
+                     offset += frames)
+                    normalizer.apply(buffer, offset);
+                // Set the normalized values for each non-masked TAC
+                target.writeVoxels(slice, offsets, buffer);
+                return null;
+            }
+        });
+
+        if (!create)
+            ActiveVoxels.invalidate(imp);
+        res.updateImage();
+        return res;
+    }
+
+    /**
+     * Normalizes single TACs stored in a buffer, so other plugins (e.g.,
+     * {@link Cluster_TACs}) can normalize the curves as they read them.
+     */
+    static class Normalizer {
+
+        private final int mode, frames;
+        // Weight of each frame, for the AUC and the mean
+        private final double[] weight;
+        private final double duration;
+        private final double[] ref;
+
+        /**
+         * @param imp Dynamic image (HyperStack), for the frame durations.
+         * @param mode Normalization mode.
+         * @param reference Reference TAC for {@link #REFERENCE}, ignored
+         * otherwise.
+         * @throws IllegalArgumentException if the reference TAC is not
+         * valid.
+         */
+        Normalizer(ImagePlus imp, int mode, double[] reference) {
+            if (mode < MAX || mode > ZSCORE)
+                throw new IllegalArgumentException(
+                        "Unknown normalization mode: " + mode);
+            this.mode = mode;
+            this.frames = imp.getDimensions()[4];
+
+            FrameTimes times = FrameTimes.fromImage(imp);
+            weight = new double[frames];
+            double total = 0.0;
+            for (int f = 0; f < frames; f++) {
+                weight[f] = times == null ? 1.0 : times.getDuration(f);
+                total += weight[f];
+            }
+            duration = total;
+
+            ref = mode == REFERENCE ? reference.clone() : null;
+            if (ref != null) {
+                if (ref.length != frames)
+                    throw new IllegalArgumentException(
+                            "The number of frames does not agree");
+                for (int f = 0; f < frames; f++)
+                    if (ref[f] == 0.0)
+                        throw new IllegalArgumentException(
+                                "The reference TAC cannot be 0");
+            }
+        }
+
+        /**
+         * Normalizes, in place, the TAC that starts at {@code offset}.
+         * @param buffer TACs, one after the other.
+         * @param offset Position of the first frame of the TAC.
+         */
+        void apply(double[] buffer, int offset) {
+            int end = offset + frames;
+            // Each TAC is contiguous in the buffer, so these loops run over
+            // plain arrays
+            switch (mode) {
+            case MAX:
+                double m = getMax(buffer, offset, frames);
+                for (int i = offset; i < end; i++)
+                    buffer[i] = m > 0.0 && m < Double.POSITIVE_INFINITY
+                            ? buffer[i] / m : 0.0;
+                break;
+            case AUC:
+            case MEAN:
+                double auc = 0.0;
+                for (int i = offset, f = 0; i < end; i++, f++)
+                    auc += buffer[i] * weight[f];
+                if (mode == MEAN) auc /= duration;
+                for (int i = offset; i < end; i++)
+                    buffer[i] = auc > 0.0 && auc < Double.POSITIVE_INFINITY
+                            ? buffer[i] / auc : 0.0;
+                break;
+            case REFERENCE:
+                for (int i = offset, f = 0; i < end; i++, f++)
+                    buffer[i] /= ref[f];
+                break;
+            default:
+                double sum = 0.0;
+                for (int i = offset; i < end; i++)
+                    sum += buffer[i];
+                double mean = sum / frames, ss = 0.0;
+                for (int i = offset; i < end; i++) {
+                    double d = buffer[i] - mean;
+                    ss += d * d;
                 }
+                // A flat TAC becomes 0, as the ones above
+                double sd = Math.sqrt(ss / frames);
+                for (int i = offset; i < end; i++)
+                    buffer[i] = sd > 0.0 ? (buffer[i] - mean) / sd : 0.0;
+                break;
             }
         }
-        
-        imp.updateImage();
+    }
+
+    // New 32-bit image for the first channel of imp
+    private static ImagePlus _createTarget(ImagePlus imp) {
+        int[] dim = imp.getDimensions();
+        return _copyProperties(imp, IJ.createImage(_title(imp), "32-bit",
+                                                   dim[0], dim[1], 1, dim[3],
+                                                   dim[4]));
+    }
+
+    // Same, backed by a raw file
+    private static ImagePlus _createTarget(ImagePlus imp, File output)
+            throws IOException {
+        int[] dim = imp.getDimensions();
+        MappedStack stack = MappedStack.create(output, dim[0], dim[1], 32, 1,
+                                               dim[3], dim[4]);
+        return _copyProperties(imp, stack.createImage(_title(imp)));
+    }
+
+    private static String _title(ImagePlus imp) {
+        return imp.getTitle() + " (normalized)";
+    }
+
+    // Copies the spatial calibration, timing and mask of imp
+    private static ImagePlus _copyProperties(ImagePlus imp, ImagePlus res) {
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        res.setCalibration(cal);
+        FrameTimes times = FrameTimes.fromImage(imp);
+        if (times != null)
+            times.attach(res);
+        VoxelMask mask = VoxelMask.get(imp);
+        if (mask != null)
+            mask.attach(res);
+        return res;
     }
 
     @Override
     public int setup(String arg, ImagePlus imp) {
-        
+
         dim = imp.getDimensions();
 
         // If not a HyperStack, return
@@ -68,7 +351,7 @@ public class Normalize_Dynamic implements PlugInFilter {
             IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
             return DONE;
         }
-        
+
         this.imp = imp;
         return DOES_ALL;
     }
@@ -0,0 +1,78 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <p>
+ * This plugin opens a raw dynamic image (little-endian planes in HyperStack
+ * order, with an optional header) as a memory-mapped virtual stack (see
+ * {@link MappedStack}), so studies larger than the heap can be processed by
+ * the other plugins. If changes are allowed, in-place operations such as
+ * Normalize Dynamic or Mask Dynamic Image write directly into the file.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Open_Mapped_Raw implements PlugIn {
+
+    private static final String[] TYPES = {"8-bit", "16-bit unsigned",
+                                           "32-bit real"};
+    private static final int[] DEPTHS = {8, 16, 32};
+
+    @Override
+    public void run(String arg0) {
+
+        OpenDialog od = new OpenDialog("Open raw dynamic image", null);
+        if (od.getFileName() == null)
+            return;
+        File file = new File(od.getDirectory(), od.getFileName());
+
+        GenericDialog gd = new GenericDialog("Open mapped raw");
+        gd.addChoice("Image type:", TYPES, TYPES[1]);
+        gd.addNumericField("Width:", 128, 0);
+        gd.addNumericField("Height:", 128, 0);
+        gd.addNumericField("Channels:", 1, 0);
+        gd.addNumericField("Slices:", 1, 0);
+        gd.addNumericField("Frames:", 1, 0);
+        gd.addNumericField("Header size (bytes):", 0, 0);
+        gd.addNumericField("Slices loaded ahead:", 4, 0);
+        gd.addCheckbox("Allow changes (written to the file)", false);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int depth = DEPTHS[gd.getNextChoiceIndex()];
+        int width = (int) gd.getNextNumber();
+        int height = (int) gd.getNextNumber();
+        int channels = (int) gd.getNextNumber();
+        int slices = (int) gd.getNextNumber();
+        int frames = (int) gd.getNextNumber();
+        long offset = (long) gd.getNextNumber();
+        int slab = (int) gd.getNextNumber();
+        boolean writable = gd.getNextBoolean();
+
+        try {
+            MappedStack stack = MappedStack.open(file, writable, offset,
+                                                 width, height, depth,
+                                                 channels, slices, frames);
+            stack.setSlab(slab);
+            ImagePlus imp = stack.createImage(file.getName());
+            imp.show();
+        } catch (IOException e) {
+            IJ.error("Open Mapped Raw", "Cannot open " + file + ": "
+                     + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            IJ.error("Open Mapped Raw", e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,220 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.plugin.PlugIn;
+
+import java.util.Arrays;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * This plugin computes, for every unmasked voxel of a dynamic image, the
+ * following parameters of its time-activity curve:
+ *
+ * <ul>
+ * <li>Area under the curve: sum of the frame values weighted by the frame
+ * durations.</li>
+ * <li>Time to peak: mid time of the frame with the maximum value.</li>
+ * <li>Peak: maximum value.</li>
+ * <li>Late uptake: mean value of the late frames, weighted by their
+ * durations.</li>
+ * </ul>
+ *
+ * All the parameters are computed in a single pass over the frames, without
+ * building the TAC of each voxel. The frame timing (see {@link FrameTimes})
+ * is taken from the image or given by the user. Each parameter is returned
+ * as a 32-bit image; masked voxels are set to 0, and the time to peak and
+ * peak of curves without any valid (non-NaN) value are NaN.
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Parametric_Images implements PlugIn {
+
+    /** Index of each parameter in the result of {@link #compute}. */
+    public static final int AUC = 0, TIME_TO_PEAK = 1, PEAK = 2,
+                            LATE_UPTAKE = 3;
+
+    private static final String[] NAMES = {"AUC", "time to peak", "peak",
+                                           "late uptake"};
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        int frames = dim[4];
+        String[] choices = new String[frames];
+        for (int i = 0; i < choices.length; i++)
+            choices[i] = (i + 1) + "";
+
+        FrameTimes known = FrameTimes.fromImage(imp);
+
+        GenericDialog gd = new GenericDialog("Parametric images");
+        gd.addStringField("Frame durations:", known == null ? ""
+                          : known.formatDurations(), 30);
+        gd.addNumericField("First frame start:",
+                           known == null ? 0 : known.getStart(0), 2);
+        gd.addChoice("Late uptake from frame:", choices,
+                     choices[frames - Math.max(1, frames / 3)]);
+        gd.addCheckbox("Remember the durations for the image", false);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        String durations = gd.getNextString().trim();
+        double start = gd.getNextNumber();
+        int late = Integer.parseInt(gd.getNextChoice());
+        boolean remember = gd.getNextBoolean();
+
+        FrameTimes times;
+        try {
+            if (durations.isEmpty())
+                throw new IllegalArgumentException(
+                        "The frame durations are needed");
+            // Keep the attached timing (which may have gaps) if unchanged
+            if (known != null && durations.equals(known.formatDurations())
+                    && start == known.getStart(0))
+                times = known;
+            else
+                times = FrameTimes.parse(durations, start, frames);
+            if (remember)
+                times.attach(imp);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        for (ImagePlus res : compute(imp, times, late))
+            res.show();
+    }
+
+    /**
+     * Computes the parametric images of a dynamic image.
+     * @param imp Dynamic image (HyperStack).
+     * @param times Frame timing.
+     * @param late First frame (1-based) of the late uptake.
+     * @return The 32-bit images, indexed by {@link #AUC},
+     * {@link #TIME_TO_PEAK}, {@link #PEAK} and {@link #LATE_UPTAKE}.
+     */
+    public static ImagePlus[] compute(ImagePlus imp, final FrameTimes times,
+                                      final int late) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        if (times.getFrames() != frames)
+            throw new IllegalArgumentException(
+                    "The number of frames does not agree");
+        if (late < 1 || late > frames)
+            throw new IllegalArgumentException("Wrong late uptake frame");
+
+        // Values are already calibrated: keep the spatial calibration only
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        final ImageStack [] targets = new ImageStack[NAMES.length];
+        ImagePlus [] res = new ImagePlus[NAMES.length];
+        for (int p = 0; p < res.length; p++) {
+            res[p] = IJ.createImage(imp.getTitle() + " (" + NAMES[p] + ")",
+                                    "32-bit", dim[0], dim[1], 1, dim[3], 1);
+            res[p].setCalibration(cal);
+            targets[p] = res[p].getStack();
+        }
+
+        double late_time = 0.0;
+        for (int f = late - 1; f < frames; f++)
+            late_time += times.getDuration(f);
+        final double late_duration = late_time;
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+        final int n = engine.getSliceSize();
+
+        SliceExecutor.run(dim[3], new SliceTask<Scratch, Void>() {
+            @Override
+            public Scratch createState() {
+                return new Scratch(n, active.getMaxCount());
+            }
+
+            @Override
+            public Void process(int slice, Scratch state) {
+                int [] offsets = active.getOffsets(slice);
+                int count = offsets.length;
+                double [] frame = state.frame;
+                double [] auc = state.auc, peak = state.peak;
+                double [] uptake = state.late;
+                int [] peak_frame = state.peak_frame;
+                Arrays.fill(auc, 0, count, 0.0);
+                Arrays.fill(uptake, 0, count, 0.0);
+                Arrays.fill(peak, 0, count, Double.NEGATIVE_INFINITY);
+                // Stays at -1 if every value of the TAC is NaN
+                Arrays.fill(peak_frame, 0, count, -1);
+
+                // Frame-major: every accumulator is updated with each frame
+                for (int f = 0; f < frames; f++) {
+                    engine.readFrame(slice, f + 1, frame);
+                    double d = times.getDuration(f);
+                    boolean is_late = f >= late - 1;
+                    for (int k = 0; k < count; k++) {
+                        double v = frame[offsets[k]];
+                        auc[k] += v * d;
+                        if (v > peak[k]) {
+                            peak[k] = v;
+                            peak_frame[k] = f;
+                        }
+                        if (is_late)
+                            uptake[k] += v * d;
+                    }
+                }
+
+                float [] p_auc = (float []) targets[AUC].getPixels(slice);
+                float [] p_ttp = (float []) targets[TIME_TO_PEAK]
+                                                   .getPixels(slice);
+                float [] p_peak = (float []) targets[PEAK].getPixels(slice);
+                float [] p_late = (float []) targets[LATE_UPTAKE]
+                                                   .getPixels(slice);
+                for (int k = 0; k < count; k++) {
+                    int i = offsets[k];
+                    p_auc[i] = (float) auc[k];
+                    if (peak_frame[k] < 0) {
+                        p_ttp[i] = Float.NaN;
+                        p_peak[i] = Float.NaN;
+                    } else {
+                        p_ttp[i] = (float) times.getMidTime(peak_frame[k]);
+                        p_peak[i] = (float) peak[k];
+                    }
+                    p_late[i] = (float) (uptake[k] / late_duration);
+                }
+                return null;
+            }
+        });
+
+        return res;
+    }
+
+    // Per-thread buffers and accumulators (one element per active voxel)
+    private static class Scratch {
+        final double [] frame, auc, peak, late;
+        final int [] peak_frame;
+
+        Scratch(int n, int voxels) {
+            frame = new double[n];
+            auc = new double[voxels];
+            peak = new double[voxels];
+            late = new double[voxels];
+            peak_frame = new int[voxels];
+        }
+    }
+
+}
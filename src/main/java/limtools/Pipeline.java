@@ -0,0 +1,429 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ * Headless batch runner that applies a sequence of processing steps to every
+ * dynamic image (HyperStack) of a directory, without any GUI interaction.
+ * The steps reuse the computational cores of the plugins and are given as a
+ * comma-separated specification:
+ * </p>
+ *
+ * <pre>
+ * mask=masks/%s_mask.tif,normalize,average=1-10,tac,voxels,export
+ * </pre>
+ *
+ * <ul>
+ * <li>{@code mask=<file>}: attaches a mask (see {@link Mask_Dynamic_Image}
+ * and {@link VoxelMask}), so the following steps skip the background. The
+ * path is relative to the input directory and {@code %s} is replaced by the
+ * study name (the file name without extension).</li>
+ * <li>{@code normalize[=max|auc|mean|zscore]}: see
+ * {@link Normalize_Dynamic}. Normalizes by the maximum if no mode is
+ * given. 32-bit studies are normalized in place; the others are first
+ * copied into a 32-bit image, which the following steps use.</li>
+ * <li>{@code average[=<first>-<last>;...]}: see {@link Average_Frames}.
+ * Writes {@code <study>_average.tif}, with one frame per window, weighted by
+ * the frame durations when they are known. All frames are averaged if no
+ * range is given.</li>
+ * <li>{@code tac}: see {@link Measure_Time_Activity}. Writes
+ * {@code <study>_tac.csv}.</li>
+ * <li>{@code voxels[=csv|lvx]}: see {@link Dynamic_to_Results}. Streams the
+ * TAC of every unmasked voxel to {@code <study>_voxels.lvx} (binary, the
+ * default) or {@code <study>_voxels.csv}.</li>
+ * <li>{@code export}: writes the current dynamic image as
+ * {@code <study>_dynamic.tif}, with the masked voxels set to 0.</li>
+ * </ul>
+ *
+ * <p>
+ * Several studies are processed concurrently. Only that many studies are
+ * loaded at the same time, which bounds the memory used by the run.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Pipeline {
+
+    private static final String USAGE =
+            "Usage: limtools.Pipeline [-j studies] [-t threads] "
+            + "<input dir> <output dir> <steps>\n"
+            + "Steps (comma-separated): mask=<file>, "
+            + "normalize[=max|auc|mean|zscore], "
+            + "average[=<first>-<last>;...], tac, voxels[=csv|lvx], export";
+
+    /**
+     * A single processing step.
+     */
+    public static abstract class Step {
+        /**
+         * Applies this step to a study.
+         * @param study The study being processed.
+         * @throws IOException if an output file cannot be written.
+         */
+        public abstract void apply(Study study) throws IOException;
+    }
+
+    /**
+     * A dynamic image being processed, together with its name and output
+     * directory. A step can replace the image with a new one (e.g., a 32-bit
+     * copy), which the following steps then use.
+     */
+    public static class Study {
+        public final String name;
+        public final File directory;
+        public final File output;
+        public ImagePlus dynamic;
+
+        public Study(String name, File directory, File output,
+                     ImagePlus dynamic) {
+            this.name = name;
+            this.directory = directory;
+            this.output = output;
+            this.dynamic = dynamic;
+        }
+
+        /**
+         * @param suffix Suffix (including extension) of the output file.
+         * @return Output file for this study.
+         */
+        public File outputFile(String suffix) {
+            return new File(output, name + suffix);
+        }
+    }
+
+    private final List<Step> steps;
+
+    public Pipeline(List<Step> steps) {
+        this.steps = new ArrayList<Step>(steps);
+    }
+
+    /**
+     * Parses a pipeline specification.
+     * @param spec Comma-separated list of steps.
+     * @return The corresponding pipeline.
+     * @throws IllegalArgumentException if the specification is not valid.
+     */
+    public static Pipeline parse(String spec) {
+        List<Step> steps = new ArrayList<Step>();
+        for (String token : spec.split(",")) {
+            token = token.trim();
+            if (token.length() == 0) continue;
+            int eq = token.indexOf('=');
+            String name = eq < 0 ? token : token.substring(0, eq).trim();
+            String arg = eq < 0 ? null : token.substring(eq + 1).trim();
+            if (name.equals("mask") && arg != null) {
+                steps.add(maskStep(arg));
+            } else if (name.equals("normalize")) {
+                steps.add(normalizeStep(arg));
+            } else if (name.equals("average")) {
+                steps.add(averageStep(arg));
+            } else if (name.equals("tac") && arg == null) {
+                steps.add(tacStep());
+            } else if (name.equals("voxels")) {
+                steps.add(voxelsStep(arg));
+            } else if (name.equals("export") && arg == null) {
+                steps.add(exportStep());
+            } else {
+                throw new IllegalArgumentException("Unknown step: " + token);
+            }
+        }
+        if (steps.isEmpty())
+            throw new IllegalArgumentException("No steps given");
+        return new Pipeline(steps);
+    }
+
+    /**
+     * Loads a single study and applies every step to it.
+     * @param file Dynamic image (HyperStack) file.
+     * @param output Output directory.
+     * @throws IOException if the study cannot be read or the results cannot
+     * be written.
+     */
+    public void process(File file, File output) throws IOException {
+        ImagePlus imp = IJ.openImage(file.getPath());
+        if (imp == null)
+            throw new IOException("Cannot open " + file);
+        ImageStack stack = imp.getStack();
+        Study study = null;
+        try {
+            if (imp.getDimensions()[4] < 2)
+                throw new IOException(file.getName() + " is not a HyperStack");
+            study = new Study(baseName(file), file.getParentFile(), output,
+                              imp);
+            for (Step step : steps)
+                step.apply(study);
+        } finally {
+            if (study != null && study.dynamic != imp)
+                study.dynamic.close();
+            imp.close();
+            // Mapped studies are not closed by ImageJ without a window
+            if (stack instanceof MappedStack)
+                ((MappedStack) stack).close();
+        }
+    }
+
+    /**
+     * Processes every TIFF file of a directory.
+     * @param input Input directory.
+     * @param output Output directory.
+     * @param studies Maximum number of studies processed (and loaded in
+     * memory) at the same time.
+     * @return Number of studies that could not be processed.
+     */
+    public int run(File input, final File output, int studies) {
+        File[] files = input.listFiles();
+        if (files == null) {
+            System.err.println("Cannot read directory " + input);
+            return 1;
+        }
+        Arrays.sort(files);
+
+        ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, studies));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        final List<File> queued = new ArrayList<File>();
+        for (final File file : files) {
+            String lower = file.getName().toLowerCase();
+            if (!file.isFile() ||
+                    !(lower.endsWith(".tif") || lower.endsWith(".tiff")))
+                continue;
+            queued.add(file);
+            futures.add(pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    process(file, output);
+                    System.out.println(file.getName() + ": done");
+                    return null;
+                }
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pool.shutdownNow();
+                return failed + futures.size() - i;
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println(queued.get(i).getName() + ": "
+                                   + e.getCause());
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Command-line entry point.
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+
+        int studies = 1;
+        int threads = Prefs.getThreads();
+        List<String> positional = new ArrayList<String>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-j"))
+                    studies = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-t"))
+                    threads = Integer.parseInt(args[++i]);
+                else
+                    positional.add(args[i]);
+            }
+        } catch (RuntimeException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        if (positional.size() != 3 || studies < 1 || threads < 1) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        Pipeline pipeline;
+        try {
+            pipeline = parse(positional.get(2));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        File input = new File(positional.get(0));
+        File output = new File(positional.get(1));
+        if (!output.isDirectory() && !output.mkdirs()) {
+            System.err.println("Cannot create directory " + output);
+            System.exit(1);
+        }
+
+        // Share the available threads between the concurrent studies
+        Prefs.setThreads(Math.max(1, threads / studies));
+        int failed = pipeline.run(input, output, studies);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /*
+     * STEPS
+     */
+
+    private static Step maskStep(final String pattern) {
+        return new Step() {
+            @Override
+            public void apply(Study study) throws IOException {
+                File file = new File(study.directory,
+                                     pattern.replace("%s", study.name));
+                ImagePlus mask = IJ.openImage(file.getPath());
+                if (mask == null)
+                    throw new IOException("Cannot open mask " + file);
+                try {
+                    Mask_Dynamic_Image.attach(study.dynamic, mask);
+                } finally {
+                    mask.close();
+                }
+            }
+        };
+    }
+
+    private static Step normalizeStep(String name) {
+        final int mode;
+        if (name == null || name.equals("max"))
+            mode = Normalize_Dynamic.MAX;
+        else if (name.equals("auc"))
+            mode = Normalize_Dynamic.AUC;
+        else if (name.equals("mean"))
+            mode = Normalize_Dynamic.MEAN;
+        else if (name.equals("zscore"))
+            mode = Normalize_Dynamic.ZSCORE;
+        else
+            throw new IllegalArgumentException(
+                    "Unknown normalization mode: " + name);
+        return new Step() {
+            @Override
+            public void apply(Study study) {
+                // 8 and 16-bit images would truncate the normalized values
+                boolean create = study.dynamic.getBitDepth() != 32;
+                study.dynamic = Normalize_Dynamic.normalize(study.dynamic,
+                                                            mode, null,
+                                                            create);
+            }
+        };
+    }
+
+    private static Step averageStep(String range) {
+        // Windows are separated by ';' (',' separates the steps)
+        final String spec = range == null ? null : range.replace(';', ',');
+        if (spec != null)
+            Average_Frames.parseWindows(spec, Integer.MAX_VALUE);
+        return new Step() {
+            @Override
+            public void apply(Study study) throws IOException {
+                int frames = study.dynamic.getDimensions()[4];
+                int [][] windows;
+                try {
+                    windows = Average_Frames.parseWindows(
+                            spec == null ? "1-" + frames : spec, frames);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(e.getMessage());
+                }
+                ImagePlus result = Average_Frames.average(study.dynamic,
+                        windows, FrameTimes.fromImage(study.dynamic));
+                save(result, study.outputFile("_average.tif"));
+            }
+        };
+    }
+
+    private static Step tacStep() {
+        return new Step() {
+            @Override
+            public void apply(Study study) throws IOException {
+                TACStatistics stats = 
+                        Measure_Time_Activity.measureStatistics(study.dynamic);
+                PrintWriter pw = new PrintWriter(new BufferedWriter(
+                        new FileWriter(study.outputFile("_tac.csv"))));
+                try {
+                    pw.println("Frame,Activity,SD,Min,Max,Voxels");
+                    for (int i = 0; i < stats.getFrames(); i++)
+                        pw.println((i + 1) + "," + stats.getMean(0, i) + ","
+                                   + stats.getSD(0, i) + ","
+                                   + stats.getMin(0, i) + ","
+                                   + stats.getMax(0, i) + ","
+                                   + stats.getCount(0));
+                } finally {
+                    pw.close();
+                }
+                if (pw.checkError())
+                    throw new IOException("Cannot write TAC of "
+                                          + study.name);
+            }
+        };
+    }
+
+    private static Step voxelsStep(String format) {
+        if (format == null)
+            format = "lvx";
+        if (!format.equals("csv") && !format.equals("lvx"))
+            throw new IllegalArgumentException("Unknown voxel format: "
+                                               + format);
+        final String suffix = "_voxels." + format;
+        return new Step() {
+            @Override
+            public void apply(Study study) throws IOException {
+                VoxelWriter writer = VoxelWriter.create(
+                        study.outputFile(suffix),
+                        study.dynamic.getDimensions());
+                try {
+                    Dynamic_to_Results.export(study.dynamic, writer);
+                } finally {
+                    writer.close();
+                }
+            }
+        };
+    }
+
+    private static Step exportStep() {
+        return new Step() {
+            @Override
+            public void apply(Study study) throws IOException {
+                // The written image is self-contained: apply the mask
+                VoxelMask mask = VoxelMask.get(study.dynamic);
+                if (mask != null)
+                    Mask_Dynamic_Image.apply(study.dynamic, mask);
+                save(study.dynamic, study.outputFile("_dynamic.tif"));
+            }
+        };
+    }
+
+    private static void save(ImagePlus imp, File file) throws IOException {
+        if (!IJ.saveAsTiff(imp, file.getPath()))
+            throw new IOException("Cannot write " + file);
+    }
+
+    private static String baseName(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -0,0 +1,309 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+import ij.plugin.filter.Analyzer;
+
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * This plugin computes the principal components of the unmasked TACs of a
+ * dynamic image, i.e., the eigenvectors of the frames x frames covariance
+ * (or correlation) matrix, and the score image of the first components.
+ * </p>
+ *
+ * <p>
+ * The whole voxel x frame matrix is never built: the covariance matrix is
+ * accumulated in a first pass, one slice at a time (see
+ * {@link TACCovariance}), and the partial matrices are merged in slice
+ * order. The small matrix is then diagonalized with the Jacobi method and a
+ * second pass projects every TAC onto the chosen components, so the memory
+ * needed is O(frames²) besides the result.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Principal_Components implements PlugIn {
+
+    @Override
+    public void run(String arg0) {
+
+        ImagePlus imp = IJ.getImage();
+        int [] dim = imp.getDimensions();
+
+        // If not a HyperStack, return
+        if (dim[4] < 2) {
+            IJ.error("Not a HyperStack", "This plugin needs a HyperStack");
+            return;
+        }
+
+        GenericDialog gd = new GenericDialog("Principal components");
+        gd.addNumericField("Components:", Math.min(3, dim[4]), 0);
+        gd.addCheckbox("Standardize frames (correlation matrix)", false);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        int components = (int) gd.getNextNumber();
+        boolean correlation = gd.getNextBoolean();
+
+        Result res;
+        try {
+            res = analyze(imp, components, correlation);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        res.getScores().show();
+
+        // One row per component and frame
+        double [] values = res.getEigenvalues();
+        double [][] vectors = res.getEigenvectors();
+        double total = 0.0;
+        for (double v : values)
+            total += v;
+        ResultsTable rt = Analyzer.getResultsTable();
+        for (int c = 0; c < components; c++) {
+            for (int f = 0; f < dim[4]; f++) {
+                rt.incrementCounter();
+                rt.addValue("Component", c + 1);
+                rt.addValue("Frame", f + 1);
+                rt.addValue("Loading", vectors[c][f]);
+                rt.addValue("Eigenvalue", values[c]);
+                rt.addValue("Variance (%)", 100.0 * values[c] / total);
+            }
+        }
+        rt.showRowNumbers(false);
+        rt.show("Results");
+    }
+
+    /**
+     * Computes the principal components of the unmasked TACs.
+     * @param imp Dynamic image (HyperStack).
+     * @param components Number of score images to compute.
+     * @param correlation {@code true} to standardize each frame (use the
+     * correlation matrix), {@code false} to use the covariance matrix.
+     * @return The eigenvalues and eigenvectors (all of them, in decreasing
+     * order of eigenvalue) and the 32-bit score image, with one frame per
+     * component.
+     * @throws IllegalArgumentException if the parameters are not valid or
+     * there are not enough voxels.
+     */
+    public static Result analyze(ImagePlus imp, int components,
+                                 boolean correlation) {
+
+        int [] dim = imp.getDimensions();
+        final int frames = dim[4];
+        if (components < 1 || components > frames)
+            throw new IllegalArgumentException(
+                    "The number of components must be between 1 and "
+                    + frames);
+
+        final TACEngine engine = new TACEngine(imp);
+        final ActiveVoxels active = ActiveVoxels.get(imp);
+
+        // First pass: covariance matrix
+        final TACCovariance cov = new TACCovariance(frames);
+        SliceExecutor.reduce(dim[3], new SliceTask<double[], TACCovariance>() {
+            @Override
+            public double[] createState() {
+                return engine.createVoxelBuffer(active.getMaxCount());
+            }
+
+            @Override
+            public TACCovariance process(int slice, double[] buffer) {
+                int [] offsets = active.getOffsets(slice);
+                TACCovariance partial = new TACCovariance(frames);
+                engine.readVoxels(slice, offsets, buffer);
+                for (int offset = 0; offset < offsets.length * frames;
+                     offset += frames)
+                    partial.add(buffer, offset);
+                return partial;
+            }
+        }, new Reducer<TACCovariance>() {
+            @Override
+            public void reduce(int slice, TACCovariance partial) {
+                cov.merge(partial);
+            }
+        });
+        if (cov.getCount() < 2)
+            throw new IllegalArgumentException("Not enough unmasked voxels");
+
+        // Centering (and scaling) of each frame
+        double [][] matrix = cov.getCovariance();
+        final double [] mean = new double[frames];
+        final double [] scale = new double[frames];
+        for (int f = 0; f < frames; f++) {
+            mean[f] = cov.getMean(f);
+            double sd = Math.sqrt(matrix[f][f]);
+            scale[f] = correlation && sd > 0.0 ? 1.0 / sd : 1.0;
+        }
+        for (int a = 0; a < frames; a++)
+            for (int b = 0; b < frames; b++)
+                matrix[a][b] *= scale[a] * scale[b];
+
+        double [] values = new double[frames];
+        double [][] vectors = new double[frames][];
+        _eigen(matrix, values, vectors);
+
+        // Second pass: scores, with the scaling folded into the weights
+        final int n = components;
+        final double [][] weights = new double[n][frames];
+        for (int c = 0; c < n; c++)
+            for (int f = 0; f < frames; f++)
+                weights[c][f] = vectors[c][f] * scale[f];
+
+        Calibration cal = imp.getCalibration().copy();
+        cal.disableDensityCalibration();
+        ImagePlus scores = IJ.createImage(imp.getTitle() + " (PCA scores)",
+                                          "32-bit", dim[0], dim[1], 1, dim[3],
+                                          n);
+        scores.setCalibration(cal);
+        final ImagePlus target = scores;
+        final ImageStack stack = scores.getStack();
+
+        SliceExecutor.run(dim[3], new SliceTask<double[], Void>() {
+            @Override
+            public double[] createState() {
+                return engine.createVoxelBuffer(active.getMaxCount());
+            }
+
+            @Override
+            public Void process(int slice, double[] buffer) {
+                int [] offsets = active.getOffsets(slice);
+                engine.readVoxels(slice, offsets, buffer);
+                for (int c = 0; c < n; c++) {
+                    float [] p = (float []) stack.getPixels(
+                            target.getStackIndex(1, slice, c + 1));
+                    double [] w = weights[c];
+                    for (int k = 0, offset = 0; k < offsets.length;
+                         k++, offset += frames) {
+                        double s = 0.0;
+                        for (int f = 0; f < frames; f++)
+                            s += (buffer[offset + f] - mean[f]) * w[f];
+                        p[offsets[k]] = (float) s;
+                    }
+                }
+                return null;
+            }
+        });
+
+        return new Result(scores, values, vectors);
+    }
+
+    // Eigenvalues (decreasing) and eigenvectors of a symmetric matrix with
+    // the cyclic Jacobi method. The matrix is overwritten. Each eigenvector
+    // is signed so that its sum is not negative.
+    private static void _eigen(double [][] a, double [] values,
+                               double [][] vectors) {
+        int n = a.length;
+        double [][] v = new double[n][n];
+        for (int i = 0; i < n; i++)
+            v[i][i] = 1.0;
+
+        for (int sweep = 0; sweep < 100; sweep++) {
+            double off = 0.0, diag = 0.0;
+            for (int p = 0; p < n; p++) {
+                diag += a[p][p] * a[p][p];
+                for (int q = p + 1; q < n; q++)
+                    off += a[p][q] * a[p][q];
+            }
+            if (off <= 1e-30 * diag || off == 0.0) break;
+
+            for (int p = 0; p < n - 1; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    if (a[p][q] == 0.0) continue;
+                    // Rotation that zeroes a[p][q]
+                    double theta = (a[q][q] - a[p][p]) / (2.0 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta)
+                            + Math.sqrt(theta * theta + 1.0));
+                    if (theta == 0.0) t = 1.0;
+                    double c = 1.0 / Math.sqrt(t * t + 1.0), s = t * c;
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[k][p], akq = a[k][q];
+                        a[k][p] = c * akp - s * akq;
+                        a[k][q] = s * akp + c * akq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[p][k], aqk = a[q][k];
+                        a[p][k] = c * apk - s * aqk;
+                        a[q][k] = s * apk + c * aqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double vkp = v[k][p], vkq = v[k][q];
+                        v[k][p] = c * vkp - s * vkq;
+                        v[k][q] = s * vkp + c * vkq;
+                    }
+                }
+            }
+        }
+
+        // Sort by decreasing eigenvalue (the columns of v are the vectors)
+        boolean [] used = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            int best = -1;
+            for (int j = 0; j < n; j++)
+                if (!used[j] && (best < 0 || a[j][j] > a[best][best]))
+                    best = j;
+            used[best] = true;
+            values[i] = a[best][best];
+            double [] vector = new double[n];
+            double sum = 0.0;
+            for (int k = 0; k < n; k++)
+                sum += vector[k] = v[k][best];
+            if (sum < 0.0)
+                for (int k = 0; k < n; k++)
+                    vector[k] = -vector[k];
+            vectors[i] = vector;
+        }
+    }
+
+    /**
+     * Result of {@link Principal_Components#analyze}.
+     */
+    public static class Result {
+
+        private final ImagePlus scores;
+        private final double [] values;
+        private final double [][] vectors;
+
+        Result(ImagePlus scores, double [] values, double [][] vectors) {
+            this.scores = scores;
+            this.values = values;
+            this.vectors = vectors;
+        }
+
+        /**
+         * @return 32-bit image with the score of each voxel for each
+         * component (one frame per component, 0 for masked voxels).
+         */
+        public ImagePlus getScores() {
+            return scores;
+        }
+
+        /**
+         * @return All the eigenvalues, in decreasing order.
+         */
+        public double[] getEigenvalues() {
+            return values;
+        }
+
+        /**
+         * @return The eigenvector (loadings, one value per frame) of each
+         * eigenvalue.
+         */
+        public double[][] getEigenvectors() {
+            return vectors;
+        }
+    }
+}
@@ -4,10 +4,16 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.filter.Analyzer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * <p>
  * This plugin creates a new 3D image with the values extracted from a 
@@ -15,24 +21,123 @@ import ij.plugin.filter.Analyzer;
  * {@link Dynamic_to_Results} plugin.
  * </p>
  * 
+ * <p>
+ * The values can also be read directly from a binary voxel file written by
+ * {@link Dynamic_to_Results} (see {@link VoxelReader}), which is
+ * memory-mapped instead of loaded. Several value columns can be rebuilt at
+ * once, each one into a channel of the resulting image.
+ * </p>
+ * 
  * @author José María Mateos - jmmateos@hggm.es
  * 
  */
 public class Results_to_Static implements PlugIn {
 
+    private static final String[] SOURCES = {
+        "Results table", "Voxel file (.lvx)"
+    };
+
     @Override
     public void run(String args) {
 
+        GenericDialog gd = new GenericDialog("Results to Static");
+        gd.addChoice("Source:", SOURCES, SOURCES[0]);
+        gd.addStringField("Columns (e.g. 3 or 3-5,8):", "3");
+        gd.showDialog();
+        
+        if (gd.wasCanceled())
+            return;
+        
+        boolean fromFile = gd.getNextChoiceIndex() == 1;
+        int [] columns;
+        try {
+            columns = parseColumns(gd.getNextString());
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        
+        ImagePlus imp;
+        if (fromFile)
+            imp = _fromFile(columns);
+        else
+            imp = _fromTable(columns);
+        
+        // Display the image
+        if (imp != null)
+            imp.show(); 
+    }
+    
+    /**
+     * Parses a list of column numbers, such as {@code "3"}, {@code "3,5"}
+     * or {@code "3-6,9"}.
+     * @param spec The column list.
+     * @return The column numbers, in the given order.
+     * @throws IllegalArgumentException if the list is not valid.
+     */
+    public static int [] parseColumns(String spec) {
+        List<Integer> cols = new ArrayList<Integer>();
+        try {
+            for (String token : spec.split(",")) {
+                token = token.trim();
+                int dash = token.indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? token : 
+                                             token.substring(0, dash).trim());
+                int last = dash < 0 ? first : Integer.parseInt(
+                                             token.substring(dash + 1).trim());
+                for (int c = first; c <= last; c++)
+                    cols.add(c);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Wrong column list: " + spec);
+        }
+        int [] res = new int[cols.size()];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = cols.get(i);
+            if (res[i] < 3)
+                throw new IllegalArgumentException(
+                        "Columns 0 to 2 hold the coordinates");
+        }
+        if (res.length == 0)
+            throw new IllegalArgumentException("No columns given");
+        return res;
+    }
+    
+    // Builds the image from a binary voxel file
+    private ImagePlus _fromFile(int [] columns) {
+        OpenDialog od = new OpenDialog("Open voxel file", null);
+        if (od.getFileName() == null)
+            return null;
+        File file = new File(od.getDirectory(), od.getFileName());
+        try {
+            VoxelReader reader = VoxelReader.open(file);
+            try {
+                return reader.toImage(file.getName(), columns);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            IJ.error("Results to Static", "Cannot read " + file + ": " 
+                     + e.getMessage());
+        } catch (IllegalArgumentException e) {
+            IJ.error("Results to Static", e.getMessage());
+        }
+        return null;
+    }
+    
+    // Builds the image from the ImageJ results table
+    private ImagePlus _fromTable(int [] columns) {
+
         ResultsTable rt = Analyzer.getResultsTable();
         
         // Is the number of columns right?
         int nCols = rt.getLastColumn();
         if (nCols == -1) { 
             IJ.error("The Results table is empty.");
-            return;
+            return null;
         } else if (nCols < 3) {
             IJ.error("The Results table does not contain enough columns.");
-            return;
+            return null;
         }
         
         // Are the headings the right ones?
@@ -40,13 +145,18 @@ public class Results_to_Static implements PlugIn {
         if (!headings[0].equals("x") || !headings[1].equals("y") 
                 || !headings[2].equals("slice")) {
             IJ.error("The headings for the first three columns are wrong.");
-            return;
+            return null;
         }            
+        for (int c : columns) {
+            if (c > nCols) {
+                IJ.error("The Results table does not contain column " + c);
+                return null;
+            }
+        }
         
-        int [] x = _float2int(rt.getColumn(0));
-        int [] y = _float2int(rt.getColumn(1));
-        int [] slices = _float2int(rt.getColumn(2));
-        float [] param = rt.getColumn(3);
+        float [] x = rt.getColumn(0);
+        float [] y = rt.getColumn(1);
+        float [] slices = rt.getColumn(2);
         
         int max_x = _getMax(x);
         int max_y = _getMax(y);
@@ -55,54 +165,57 @@ public class Results_to_Static implements PlugIn {
         // We need to ask the user for the image dimensions, as there is no
         // way of guessing them from the coordinate values (the voxels have
         // probably been masked beforehand). In any case, use the maximum
-        // read value for each dimension.
+        // read value for each dimension (coordinates are 0-based).
         GenericDialog gd = new GenericDialog("Please set the image dimensions");
-        gd.addNumericField("X", max_x, 0);
-        gd.addNumericField("Y", max_y, 0);
+        gd.addNumericField("X", max_x + 1, 0);
+        gd.addNumericField("Y", max_y + 1, 0);
         gd.addNumericField("Slices", max_slice, 0);
         gd.showDialog();
         
         if (gd.wasCanceled())
-            return;
+            return null;
         
         int dim_x = (int)Math.round(gd.getNextNumber());
         int dim_y = (int)Math.round(gd.getNextNumber());
         int dim_slice = (int)Math.round(gd.getNextNumber());
         
         // Check that the user provided values are correct
-        if (dim_x < max_x || dim_y < max_y || dim_slice < max_slice) {
+        if (dim_x <= max_x || dim_y <= max_y || dim_slice < max_slice) {
             IJ.error("The provided values are lower than some of the " +
                      "coordinates read from the Results table.");
-            return;
+            return null;
         }
         
-        // Build the image
-        ImagePlus imp = IJ.createImage("Results to Static image", dim_x, dim_y, 
-                                       dim_slice, 32);
+        // Build the image, one channel per column
+        int nc = columns.length;
+        ImagePlus imp = IJ.createImage("Results to Static image", "32-bit",
+                                       dim_x, dim_y, nc, dim_slice, 1);
         ImageStack is = imp.getStack();
-        // Populate the stack
+        float [][] params = new float[nc][];
+        for (int c = 0; c < nc; c++)
+            params[c] = rt.getColumn(columns[c]);
+        // Each plane is fetched once, as in VoxelReader
+        float [][] pixels = new float[nc * dim_slice][];
+        for (int p = 0; p < pixels.length; p++)
+            pixels[p] = (float []) is.getPixels(p + 1);
+        // Populate the stack in a single pass
         for (int i = 0; i < x.length; i++) {
-            is.setVoxel(x[i], y[i], slices[i] - 1, param[i]);
+            int index = Math.round(y[i]) * dim_x + Math.round(x[i]);
+            int plane = (Math.round(slices[i]) - 1) * nc;
+            for (int c = 0; c < nc; c++)
+                pixels[plane + c][index] = params[c][i];
         }
+        if (nc > 1)
+            imp.setOpenAsHyperStack(true);
         
-        // Display the image
-        imp.show(); 
-    }
-    
-    // Converts a float array into an integer array. This is used to cast the
-    // coordinate values.
-    private int [] _float2int(float [] data) {
-        int [] res = new int[data.length];
-        for (int i = 0; i < data.length; i++) {
-            res[i] = Math.round(data[i]);
-        }
-        return res;
+        return imp;
     }
     
-    // Gets the maximum integer value from an array.
-    private int _getMax(int [] data) {
+    // Gets the maximum (rounded) integer value from an array.
+    private int _getMax(float [] data) {
         int res = -Integer.MAX_VALUE;
-        for (int i : data) {
+        for (float f : data) {
+            int i = Math.round(f);
             if (i > res)
                 res = i;
         }
@@ -8,6 +8,13 @@ import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import limtools.SliceExecutor.Reducer;
+import limtools.SliceExecutor.SliceTask;
+
 /**
  * Computes the Jaccard index (http://en.wikipedia.org/wiki/Jaccard_index) and
  * Dice coefficient (http://en.wikipedia.org/wiki/Dice%27s_coefficient) for
@@ -15,10 +22,22 @@ import ij.plugin.PlugIn;
  * 
  * Dice coefficient is computed from the Jaccard index as 2J/(1 + J).
  * 
+ * The masks are packed in 64-voxel words and compared with bitwise
+ * operations and bit counts, one slice per thread. In batch mode, every
+ * open mask of the same size is packed once and the whole pairwise
+ * Jaccard/Dice matrix is computed in a single pass.
+ * 
+ * Label images (e.g., two atlas segmentations) can also be compared label by
+ * label: a single pass gives the volume, overlap, Jaccard index and Dice
+ * coefficient of every label (see {@link LabelOverlap}).
+ * 
  * @author José María Mateos - jmmateos@hggm.es
  */
 public class Similarity_Index implements PlugIn {
     
+    /** Maximum number of labels for the co-occurrence table. */
+    public static final int MAX_CONFUSION_LABELS = 256;
+    
     private ImagePlus A, B;
 
     @Override
@@ -40,6 +59,9 @@ public class Similarity_Index implements PlugIn {
         GenericDialog gd = new GenericDialog("Choose images");
         gd.addChoice("Image 1:", open_images, open_images[0]);
         gd.addChoice("Image 2:", open_images, open_images[1]);
+        gd.addCheckbox("Compare all open masks (pairwise matrix)", false);
+        gd.addCheckbox("Label images (per-label indexes)", false);
+        gd.addCheckbox("Show co-occurrence table", false);
         gd.showDialog();
                 
         // If user canceled, return
@@ -47,6 +69,18 @@ public class Similarity_Index implements PlugIn {
         
         A = WindowManager.getImage(gd.getNextChoice());
         B = WindowManager.getImage(gd.getNextChoice());
+        boolean batch = gd.getNextBoolean();
+        boolean labels = gd.getNextBoolean();
+        boolean confusion = gd.getNextBoolean();
+        
+        if (batch) {
+            _runBatch(images);
+            return;
+        }
+        if (labels) {
+            _runLabels(confusion);
+            return;
+        }
         
         // Check that the image types are appropriate (masks: 8-bit).
         int [] dimA = A.getDimensions();
@@ -60,28 +94,11 @@ public class Similarity_Index implements PlugIn {
         }
         
         double jaccard = 0.0, dice = 0.0;
-        double intersection = 0.0, union = 0.0;
-        double a = 0.0, b = 0.0;
-        
-        // Iterate the masks and compute the intersection and the union.
-        int [] dim = A.getDimensions();
-        
-        ImageStack stackA = A.getStack();
-        ImageStack stackB = B.getStack();
-        
-        for (int z = 0; z < dim[3]; z++) {
-            for (int x = 0; x < dim[0]; x++) {
-                for (int y = 0; y < dim[1]; y++) {
-                    a = stackA.getVoxel(x, y, z);
-                    b = stackB.getVoxel(x, y, z);
-                    if (a != 0 || b != 0) union += 1.0;
-                    if (a != 0 && b != 0) intersection += 1.0;
-                }
-            }
-        }
+        long [] overlap = overlap(A, B);
+        long intersection = overlap[0], union = overlap[1];
        
         // Compute both indexes
-        jaccard = intersection / union;
+        jaccard = (double) intersection / union;
         dice = 2 * jaccard / (1 + jaccard);
         
         // Display them on screen (use a ResultsTable)
@@ -93,5 +110,297 @@ public class Similarity_Index implements PlugIn {
         rt.showRowNumbers(false);
         rt.show("Results");
     }
+    
+    /**
+     * Computes the indexes of every label of the two chosen images.
+     */
+    private void _runLabels(boolean show_confusion) {
+        LabelOverlap res;
+        try {
+            res = labelOverlap(A, B, show_confusion);
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+        
+        ResultsTable rt = new ResultsTable();
+        for (int l = 1; l < res.getLabels(); l++) {
+            if (res.getUnion(l) == 0) continue;
+            rt.incrementCounter();
+            rt.addValue("Label", l);
+            rt.addValue("Volume 1", res.getVolumeA(l));
+            rt.addValue("Volume 2", res.getVolumeB(l));
+            rt.addValue("Overlap", res.getOverlap(l));
+            rt.addValue("Jaccard", res.getJaccard(l));
+            rt.addValue("Dice", res.getDice(l));
+        }
+        rt.showRowNumbers(false);
+        rt.show("Label overlap");
+        
+        if (!show_confusion)
+            return;
+        if (!res.hasConfusion()) {
+            IJ.error("The co-occurrence table is only available for up to "
+                     + MAX_CONFUSION_LABELS + " labels");
+            return;
+        }
+        // Rows: labels of image 1, columns: labels of image 2
+        ResultsTable ct = new ResultsTable();
+        for (int a = 0; a < res.getLabels(); a++) {
+            ct.incrementCounter();
+            ct.addValue("Label", a);
+            for (int b = 0; b < res.getLabels(); b++)
+                ct.addValue(String.valueOf(b), res.getConfusion(a, b));
+        }
+        ct.showRowNumbers(false);
+        ct.show("Label co-occurrence");
+    }
+    
+    /**
+     * Computes the matrix with every open mask (8-bit) that has the same
+     * dimensions as the first chosen image.
+     */
+    private void _runBatch(int [] images) {
+        if (A.getType() != ImagePlus.GRAY8) {
+            IJ.error("Image 1 needs to be a mask (8-bit data type)");
+            return;
+        }
+        List<ImagePlus> masks = new ArrayList<ImagePlus>();
+        int [] dimA = A.getDimensions();
+        for (int id : images) {
+            ImagePlus imp = WindowManager.getImage(id);
+            int [] dim = imp.getDimensions();
+            if (imp.getType() == ImagePlus.GRAY8 && dim[0] == dimA[0] &&
+                    dim[1] == dimA[1] && dim[3] == dimA[3])
+                masks.add(imp);
+        }
+        if (masks.size() < 2) {
+            IJ.error("Need at least two masks (8-bit data type) of equal size");
+            return;
+        }
+        
+        ImagePlus [] list = masks.toArray(new ImagePlus[masks.size()]);
+        long [][] intersections = intersections(list);
+        
+        // One table for each index
+        ResultsTable jaccard = new ResultsTable();
+        ResultsTable dice = new ResultsTable();
+        for (int i = 0; i < list.length; i++) {
+            jaccard.incrementCounter();
+            dice.incrementCounter();
+            jaccard.addValue("Mask", list[i].getTitle());
+            dice.addValue("Mask", list[i].getTitle());
+            for (int j = 0; j < list.length; j++) {
+                long n = intersections[i][j];
+                long u = intersections[i][i] + intersections[j][j] - n;
+                double index = (double) n / u;
+                jaccard.addValue(list[j].getTitle(), index);
+                dice.addValue(list[j].getTitle(), 2 * index / (1 + index));
+            }
+        }
+        jaccard.showRowNumbers(false);
+        dice.showRowNumbers(false);
+        jaccard.show("Jaccard matrix");
+        dice.show("Dice matrix");
+    }
+    
+    /**
+     * Computes the intersection and the union of two masks (8-bit images of
+     * the same dimensions). Any non-zero value is considered foreground.
+     * @param A First mask.
+     * @param B Second mask.
+     * @return The number of voxels in the intersection and in the union,
+     * in this order.
+     */
+    public static long [] overlap(ImagePlus A, ImagePlus B) {
+        long intersection = 0, union = 0;
+        
+        // Pack both masks, slice by slice, and count the bits of the
+        // intersection and the union.
+        int [] dim = A.getDimensions();
+        final int words = (dim[0] * dim[1] + 63) >>> 6;
+        
+        final ImageStack stackA = A.getStack();
+        final ImageStack stackB = B.getStack();
+        
+        List<long[]> counts = SliceExecutor.run(dim[3], 
+                new SliceTask<long[][], long[]>() {
+            @Override
+            public long[][] createState() {
+                return new long[2][words];
+            }
+
+            @Override
+            public long[] process(int slice, long[][] state) {
+                long[] a = state[0], b = state[1];
+                VoxelMask.pack(stackA, slice, a);
+                VoxelMask.pack(stackB, slice, b);
+                long u = 0, n = 0;
+                for (int i = 0; i < words; i++) {
+                    n += Long.bitCount(a[i] & b[i]);
+                    u += Long.bitCount(a[i] | b[i]);
+                }
+                return new long[] {n, u};
+            }
+        });
+        for (long[] c : counts) {
+            intersection += c[0];
+            union += c[1];
+        }
+        return new long [] {intersection, union};
+    }
+    
+    /**
+     * Compares two label images in a single pass. Values of 32-bit images
+     * are truncated to int.
+     * @param A First label image.
+     * @param B Second label image, with the same dimensions.
+     * @param confusion {@code true} to build the co-occurrence table as well.
+     * It is not built if there are more than {@link #MAX_CONFUSION_LABELS}
+     * labels.
+     * @return Per-label volumes and overlap.
+     * @throws IllegalArgumentException if the dimensions do not agree or the
+     * labels are not valid.
+     */
+    public static LabelOverlap labelOverlap(ImagePlus A, ImagePlus B,
+                                            final boolean confusion) {
+        int [] dimA = A.getDimensions();
+        int [] dimB = B.getDimensions();
+        if (dimA[0] != dimB[0] || dimA[1] != dimB[1] || dimA[3] != dimB[3])
+            throw new IllegalArgumentException(
+                    "Both label images need to be of equal size");
+        
+        final ImageStack stackA = A.getStack();
+        final ImageStack stackB = B.getStack();
+        final int n = dimA[0] * dimA[1];
+        
+        // Each slice is read once. Its partial result only holds the labels
+        // present in it, and the reducer grows the total as new labels
+        // appear (the number of labels is not known until the end)
+        final LabelOverlap [] total = {new LabelOverlap(1, confusion)};
+        SliceExecutor.reduce(dimA[3], new SliceTask<LabelScratch, Partial>() {
+            @Override
+            public LabelScratch createState() {
+                return new LabelScratch(n);
+            }
 
+            @Override
+            public Partial process(int slice, LabelScratch state) {
+                int [] a = state.a, b = state.b, index = state.index;
+                int max = Math.max(Utils.readLabels(stackA, slice, a),
+                                   Utils.readLabels(stackB, slice, b));
+                if (max > Utils.MAX_LABEL)
+                    throw new IllegalArgumentException(
+                            "Labels cannot be greater than " + Utils.MAX_LABEL);
+                // Dense index of the labels present in the slice
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    if (index[a[i]] < 0) {
+                        index[a[i]] = k;
+                        state.present[k++] = a[i];
+                    }
+                    a[i] = index[a[i]];
+                    if (index[b[i]] < 0) {
+                        index[b[i]] = k;
+                        state.present[k++] = b[i];
+                    }
+                    b[i] = index[b[i]];
+                }
+                for (int j = 0; j < k; j++)
+                    index[state.present[j]] = -1;
+                // With more labels in a single slice, the total table would
+                // be dropped anyway
+                Partial partial = new Partial(
+                        new LabelOverlap(k, confusion 
+                                            && k <= MAX_CONFUSION_LABELS),
+                        Arrays.copyOf(state.present, k), max);
+                partial.overlap.add(a, b);
+                return partial;
+            }
+        }, new Reducer<Partial>() {
+            @Override
+            public void reduce(int slice, Partial partial) {
+                int labels = partial.max + 1;
+                if (labels > total[0].getLabels())
+                    total[0] = new LabelOverlap(total[0], labels,
+                            total[0].hasConfusion()
+                            && labels <= MAX_CONFUSION_LABELS);
+                total[0].merge(partial.overlap, partial.labels);
+            }
+        });
+        return total[0];
+    }
+    
+    /**
+     * Computes the size of the intersection of every pair of masks (images
+     * of the same dimensions). Each mask is read only once.
+     * @param masks The masks. Any non-zero value is considered foreground.
+     * @return Symmetric matrix with the number of voxels in the intersection
+     * of masks {@code i} and {@code j}; the diagonal holds the volume of each
+     * mask. The union is {@code m[i][i] + m[j][j] - m[i][j]}.
+     */
+    public static long [][] intersections(ImagePlus [] masks) {
+        final int N = masks.length;
+        final VoxelMask [] packed = new VoxelMask[N];
+        for (int i = 0; i < N; i++)
+            packed[i] = VoxelMask.fromImage(masks[i]);
+        
+        final int slices = packed[0].getSlices();
+        List<long[][]> partials = SliceExecutor.run(slices, 
+                new SliceTask<Void, long[][]>() {
+            @Override
+            public long[][] process(int slice, Void state) {
+                long [][] m = new long[N][N];
+                for (int i = 0; i < N; i++) {
+                    long [] a = packed[i].getWords(slice);
+                    for (int j = i; j < N; j++) {
+                        long [] b = packed[j].getWords(slice);
+                        long n = 0;
+                        for (int w = 0; w < a.length; w++)
+                            n += Long.bitCount(a[w] & b[w]);
+                        m[i][j] = n;
+                    }
+                }
+                return m;
+            }
+        });
+        
+        long [][] res = new long[N][N];
+        for (long [][] m : partials)
+            for (int i = 0; i < N; i++)
+                for (int j = i; j < N; j++)
+                    res[i][j] += m[i][j];
+        for (int i = 0; i < N; i++)
+            for (int j = 0; j < i; j++)
+                res[i][j] = res[j][i];
+        return res;
+    }
+    
+    // Per-thread buffers. index maps each label to its position in the
+    // partial result of the current slice (-1 if not present), and present
+    // holds the labels in that order.
+    private static class LabelScratch {
+        final int [] a, b, index, present;
+        
+        LabelScratch(int n) {
+            a = new int[n];
+            b = new int[n];
+            index = new int[Utils.MAX_LABEL + 1];
+            Arrays.fill(index, -1);
+            present = new int[Math.min(Utils.MAX_LABEL + 1, 2 * n)];
+        }
+    }
+    
+    // Overlap of the labels present in a slice
+    private static class Partial {
+        final LabelOverlap overlap;
+        final int [] labels;
+        final int max;
+        
+        Partial(LabelOverlap overlap, int [] labels, int max) {
+            this.overlap = overlap;
+            this.labels = labels;
+            this.max = max;
+        }
+    }
 }
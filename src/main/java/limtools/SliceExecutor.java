@@ -0,0 +1,267 @@
+package limtools;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Runs voxelwise computations in parallel, one slice at a time, using a fixed
+ * thread pool sized from {@link Prefs#getThreads()}.
+ * </p>
+ *
+ * <p>
+ * Each worker thread creates its own scratch state (usually the buffers used
+ * to read the slice) and then keeps taking slices until there are no more
+ * left. The partial result of each slice is returned in slice order, so
+ * reducing the list from the first to the last element gives exactly the
+ * same (bit-identical) result no matter how many threads were used. The
+ * serial path is just the same code running on the calling thread.
+ * </p>
+ *
+ * <p>
+ * When the partial results are big (e.g., one accumulator per label), a
+ * {@link Reducer} can be given instead: partial results are then folded in
+ * slice order as soon as they are available and released afterwards. The
+ * reducer is called by one thread at a time, outside the lock that guards
+ * the pending results, and a worker does not take a new slice while there
+ * are already two slices per thread waiting to be folded, so a slow slice
+ * cannot make the following partial results pile up in memory.
+ * </p>
+ *
+ * <p>
+ * If a task or the reducer throws an exception, the other workers stop
+ * taking slices and the exception is rethrown to the caller.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class SliceExecutor {
+
+    // Slices (per thread) that can be processed ahead of the reducer
+    private static final int LOOKAHEAD = 2;
+
+    /**
+     * The work to be done on each slice.
+     *
+     * @param <S> Type of the per-thread scratch state.
+     * @param <R> Type of the per-slice partial result.
+     */
+    public static abstract class SliceTask<S, R> {
+
+        /**
+         * Creates the scratch state for a worker thread. It will never be
+         * shared with other threads.
+         * @return The new state, or {@code null} if none is needed.
+         */
+        public S createState() {
+            return null;
+        }
+
+        /**
+         * Processes a single slice.
+         * @param slice Slice (1-based).
+         * @param state Scratch state of the calling thread.
+         * @return The partial result for this slice (may be {@code null}).
+         */
+        public abstract R process(int slice, S state);
+    }
+
+    /**
+     * Folds the partial results of the slices, always in slice order.
+     *
+     * @param <R> Type of the per-slice partial result.
+     */
+    public interface Reducer<R> {
+        /**
+         * Folds the partial result of the next slice. Calls are never
+         * concurrent.
+         * @param slice Slice (1-based).
+         * @param partial Partial result of that slice.
+         */
+        void reduce(int slice, R partial);
+    }
+
+    /**
+     * @return Number of threads to use, as configured in ImageJ.
+     */
+    public static int getThreads() {
+        return Math.max(1, Prefs.getThreads());
+    }
+
+    /**
+     * Runs the task over the slices {@code 1..slices} using the number of
+     * threads configured in ImageJ.
+     * @param slices Number of slices.
+     * @param task Work to do on each slice.
+     * @return The partial result of each slice, in slice order.
+     */
+    public static <S, R> List<R> run(int slices, SliceTask<S, R> task) {
+        return run(slices, task, getThreads());
+    }
+
+    /**
+     * Runs the task over the slices {@code 1..slices}.
+     * @param slices Number of slices.
+     * @param task Work to do on each slice.
+     * @param threads Maximum number of threads to use.
+     * @return The partial result of each slice, in slice order.
+     */
+    public static <S, R> List<R> run(int slices, SliceTask<S, R> task,
+                                     int threads) {
+        Object[] results = execute(slices, task, null, threads);
+        @SuppressWarnings("unchecked")
+        List<R> list = (List<R>) Arrays.asList(results);
+        return list;
+    }
+
+    /**
+     * Runs the task over the slices {@code 1..slices} using the number of
+     * threads configured in ImageJ, folding the partial results in slice
+     * order as they become available.
+     * @param slices Number of slices.
+     * @param task Work to do on each slice.
+     * @param reducer Receives the partial result of each slice.
+     */
+    public static <S, R> void reduce(int slices, SliceTask<S, R> task,
+                                     Reducer<R> reducer) {
+        execute(slices, task, reducer, getThreads());
+    }
+
+    private static <S, R> Object[] execute(final int slices,
+                                           final SliceTask<S, R> task,
+                                           final Reducer<R> reducer,
+                                           int threads) {
+
+        final Object[] results = new Object[slices];
+        final AtomicInteger next = new AtomicInteger(1);
+        final AtomicInteger done = new AtomicInteger(0);
+        // Set when a slice or the reducer fails: no more slices are claimed
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        // Next slice to be folded by the reducer, and whether a thread is
+        // folding (guarded by results)
+        final int[] folded = {0};
+        final boolean[] folding = {false};
+        final int nThreads = Math.max(1, Math.min(threads, slices));
+        // Slices processed but not yet folded, so a slow slice cannot make
+        // the partial results of all the following ones pile up
+        final Semaphore ahead = reducer == null ? null
+                : new Semaphore(LOOKAHEAD * nThreads);
+
+        Callable<Void> worker = new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                try {
+                    S state = task.createState();
+                    while (!failed.get()) {
+                        if (ahead != null) ahead.acquire();
+                        int slice = next.getAndIncrement();
+                        if (slice > slices || failed.get()) break;
+                        R partial = task.process(slice, state);
+                        if (reducer == null)
+                            results[slice - 1] = partial;
+                        else
+                            fold(slice, partial);
+                        showProgress(done.incrementAndGet(), slices);
+                    }
+                } catch (RuntimeException e) {
+                    fail();
+                    throw e;
+                } catch (Error e) {
+                    fail();
+                    throw e;
+                }
+                return null;
+            }
+
+            // Stores the partial result and, unless another thread is
+            // already doing it, folds every consecutive slice available.
+            // The reducer runs outside the lock, one slice at a time.
+            private void fold(int slice, R partial) {
+                synchronized (results) {
+                    results[slice - 1] = new Object[] {partial};
+                    if (folding[0]) return;
+                    folding[0] = true;
+                }
+                while (true) {
+                    R r;
+                    int n;
+                    synchronized (results) {
+                        if (folded[0] == slices
+                                || results[folded[0]] == null) {
+                            folding[0] = false;
+                            return;
+                        }
+                        @SuppressWarnings("unchecked")
+                        R ready = (R) ((Object[]) results[folded[0]])[0];
+                        r = ready;
+                        results[folded[0]] = null;
+                        n = ++folded[0];
+                    }
+                    reducer.reduce(n, r);
+                    ahead.release();
+                }
+            }
+
+            // Stops the other workers, including those waiting for the
+            // reducer
+            private void fail() {
+                failed.set(true);
+                if (ahead != null)
+                    ahead.release(slices + nThreads);
+            }
+        };
+
+        if (nThreads == 1) {
+            // Serial path: same work, calling thread
+            try {
+                worker.call();
+            } catch (Exception e) {
+                throw rethrow(e);
+            }
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+            try {
+                List<Future<Void>> futures = new ArrayList<Future<Void>>();
+                for (int i = 0; i < nThreads; i++)
+                    futures.add(pool.submit(worker));
+                for (Future<Void> future : futures)
+                    future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw rethrow(e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+        IJ.showProgress(1.0);
+        return results;
+    }
+
+    // IJ.showProgress may be called from several workers at once
+    private static synchronized void showProgress(int done, int total) {
+        IJ.showProgress(done, total);
+    }
+
+    private static RuntimeException rethrow(Throwable t) {
+        if (t instanceof RuntimeException)
+            return (RuntimeException) t;
+        if (t instanceof Error)
+            throw (Error) t;
+        return new RuntimeException(t);
+    }
+}
@@ -0,0 +1,175 @@
+package limtools;
+
+/**
+ * <p>
+ * Summed-area tables (integral images) of every frame of a slice of a dynamic
+ * image, for the values and their squares. Once built, the sum of any
+ * rectangle of the slice is obtained for all the frames from four corners,
+ * so the cost of a query does not depend on the size of the rectangle.
+ * </p>
+ *
+ * <p>
+ * The frames of each corner are stored together:
+ * </p>
+ *
+ * <pre>
+ * table[((y * (width + 1)) + x) * frames + f]
+ * </pre>
+ *
+ * <p>
+ * so a query reads four contiguous blocks. Only the active voxels are added,
+ * as in {@link ActiveVoxels}: those inside the mask attached to the image
+ * (see {@link VoxelMask}) whose TAC is not masked (see
+ * {@link Utils#isMasked(double[], double)}). The tables need
+ * {@link #getBytes(TACEngine)} bytes, so they should only be built for a few
+ * slices at a time.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class SummedAreaTable {
+
+    private final int width, height, frames, stride;
+    private final double[] sum, sum2;
+    // Number of active voxels
+    private final int[] count;
+
+    /**
+     * Builds the tables of a slice.
+     * @param engine Reader of the dynamic image.
+     * @param slice Slice (1-based).
+     */
+    public SummedAreaTable(TACEngine engine, int slice) {
+        width = engine.getWidth();
+        height = engine.getHeight();
+        frames = engine.getFrames();
+        stride = width + 1;
+        int cells = stride * (height + 1);
+        sum = new double[cells * frames];
+        sum2 = new double[cells * frames];
+
+        double[] frame = new double[width * height];
+        boolean[] active = findActive(engine, slice, frame);
+        count = new int[cells];
+        for (int y = 0; y < height; y++) {
+            int row = 0;
+            for (int x = 0; x < width; x++) {
+                if (active[y * width + x]) row++;
+                int c = (y + 1) * stride + x + 1;
+                count[c] = count[c - stride] + row;
+            }
+        }
+
+        for (int f = 0; f < frames; f++) {
+            engine.readFrame(slice, f + 1, frame);
+            for (int y = 0; y < height; y++) {
+                double row = 0.0, row2 = 0.0;
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    if (active[i]) {
+                        double v = frame[i];
+                        row += v;
+                        row2 += v * v;
+                    }
+                    int o = ((y + 1) * stride + x + 1) * frames + f;
+                    int up = o - stride * frames;
+                    sum[o] = sum[up] + row;
+                    sum2[o] = sum2[up] + row2;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param engine Reader of the dynamic image.
+     * @return Memory needed by the tables of a slice, in bytes.
+     */
+    public static long getBytes(TACEngine engine) {
+        return 16L * (engine.getWidth() + 1) * (engine.getHeight() + 1)
+               * engine.getFrames();
+    }
+
+    /**
+     * Finds the active voxels of a slice. Most TACs are told apart by their
+     * first frame, so the frames are only read while some voxel inside the
+     * mask has not shown a value other than the calibrated 0.
+     * @param engine Reader of the dynamic image.
+     * @param slice Slice (1-based).
+     * @param frame Buffer for a frame ({@code width * height} elements).
+     * @return {@code true} for the active voxels, by offset.
+     */
+    static boolean[] findActive(TACEngine engine, int slice, double[] frame) {
+        int n = engine.getSliceSize();
+        double calzero = engine.getCalibratedZero();
+        VoxelMask mask = engine.getMask();
+        boolean[] active = new boolean[n];
+        // Voxels inside the mask whose TAC has only zeros so far
+        int[] left = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++)
+            if (mask == null || mask.isActive(slice, i))
+                left[count++] = i;
+        for (int f = 1; f <= engine.getFrames() && count > 0; f++) {
+            engine.readFrame(slice, f, frame);
+            int kept = 0;
+            for (int k = 0; k < count; k++) {
+                int i = left[k];
+                if (frame[i] != calzero && frame[i] != 0.0)
+                    active[i] = true;
+                else
+                    left[kept++] = i;
+            }
+            count = kept;
+        }
+        return active;
+    }
+
+    /**
+     * Adds the sums of a rectangle (clipped to the slice) for every frame.
+     * @param x0 First column.
+     * @param y0 First row.
+     * @param x1 Last column (inclusive).
+     * @param y1 Last row (inclusive).
+     * @param s Sum of the values of each frame is added here.
+     * @param s2 Sum of the squared values of each frame is added here.
+     * @return Number of voxels added.
+     */
+    public int add(int x0, int y0, int x1, int y1, double[] s, double[] s2) {
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, width - 1);
+        y1 = Math.min(y1, height - 1);
+        if (x0 > x1 || y0 > y1) return 0;
+
+        // Corners of the rectangle in the tables
+        int a = y0 * stride + x0, b = y0 * stride + x1 + 1;
+        int c = (y1 + 1) * stride + x0, d = (y1 + 1) * stride + x1 + 1;
+        int n = count[d] - count[b] - count[c] + count[a];
+        a *= frames;
+        b *= frames;
+        c *= frames;
+        d *= frames;
+        for (int f = 0; f < frames; f++) {
+            s[f] += sum[d + f] - sum[b + f] - sum[c + f] + sum[a + f];
+            s2[f] += sum2[d + f] - sum2[b + f] - sum2[c + f] + sum2[a + f];
+        }
+        return n;
+    }
+
+    /**
+     * Turns sums into the mean and the sample standard deviation, in place.
+     * @param s Sum of the values of each frame; replaced by the mean.
+     * @param s2 Sum of the squared values of each frame; replaced by the
+     * standard deviation.
+     * @param n Number of voxels.
+     */
+    public static void toMeanSD(double[] s, double[] s2, int n) {
+        for (int f = 0; f < s.length; f++) {
+            double mean = s[f] / n;
+            double var = n > 1 ? (s2[f] - s[f] * mean) / (n - 1) : 0.0;
+            s[f] = mean;
+            s2[f] = var > 0.0 ? Math.sqrt(var) : 0.0;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package limtools;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Accumulates the mean and the frames x frames covariance matrix of a set of
+ * time-activity curves, so the matrix of a whole image can be computed in a
+ * single streaming pass with memory O(frames²).
+ * </p>
+ *
+ * <p>
+ * TACs are added with Welford's update and partial accumulators (e.g., one
+ * per slice) are combined with the pairwise formula of Chan et al., which
+ * avoids the cancellation of the naive sum of products when the mean is
+ * large compared to the variance.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class TACCovariance {
+
+    private final int frames;
+    private long count;
+    private final double[] mean;
+    // Sum of the products of the deviations from the mean (upper triangle,
+    // row-major: element (a, b) with a <= b)
+    private final double[] comoment;
+    // Scratch deviation of the last TAC
+    private final double[] delta;
+
+    /**
+     * Creates an empty accumulator.
+     * @param frames Number of frames of each TAC.
+     */
+    public TACCovariance(int frames) {
+        this.frames = frames;
+        mean = new double[frames];
+        comoment = new double[frames * (frames + 1) / 2];
+        delta = new double[frames];
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Adds a TAC.
+     * @param buffer Buffer that contains the TAC.
+     * @param offset Position of the first frame of the TAC.
+     */
+    public void add(double[] buffer, int offset) {
+        count++;
+        for (int f = 0; f < frames; f++) {
+            double d = buffer[offset + f] - mean[f];
+            delta[f] = d;
+            mean[f] += d / count;
+        }
+        // delta * (x - new mean)' is symmetric
+        for (int a = 0, i = 0; a < frames; a++) {
+            double d = delta[a];
+            for (int b = a; b < frames; b++, i++)
+                comoment[i] += d * (buffer[offset + b] - mean[b]);
+        }
+    }
+
+    /**
+     * Adds the contents of another accumulator to this one.
+     * @param other Accumulator with the same number of frames.
+     */
+    public void merge(TACCovariance other) {
+        if (other.count == 0) return;
+        long n = count + other.count;
+        double w = (double) count * other.count / n;
+        for (int f = 0; f < frames; f++)
+            delta[f] = other.mean[f] - mean[f];
+        for (int a = 0, i = 0; a < frames; a++)
+            for (int b = a; b < frames; b++, i++)
+                comoment[i] += other.comoment[i] + delta[a] * delta[b] * w;
+        for (int f = 0; f < frames; f++)
+            mean[f] += delta[f] * other.count / n;
+        count = n;
+    }
+
+    /**
+     * @return Number of TACs added.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return Mean value of the frame.
+     */
+    public double getMean(int frame) {
+        return mean[frame];
+    }
+
+    /**
+     * @return The (sample) covariance matrix, frames x frames, or a matrix
+     * of NaN if less than two TACs were added.
+     */
+    public double[][] getCovariance() {
+        double[][] res = new double[frames][frames];
+        if (count < 2) {
+            for (double[] row : res)
+                Arrays.fill(row, Double.NaN);
+            return res;
+        }
+        for (int a = 0, i = 0; a < frames; a++)
+            for (int b = a; b < frames; b++, i++)
+                res[a][b] = res[b][a] = comoment[i] / (count - 1);
+        return res;
+    }
+}
@@ -0,0 +1,540 @@
+package limtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+/**
+ * <p>
+ * Frame-major reader for the time-activity curves (TACs) of a dynamic image.
+ * </p>
+ *
+ * <p>
+ * Instead of fetching every sample through {@link ImageStack#getVoxel} and
+ * {@link Calibration#getCValue(double)}, this class reads the primitive pixel
+ * array of each frame once per slice and calibrates the values with a lookup
+ * table (8 and 16-bit images, see {@link CalibrationTable}) or with no
+ * transformation at all when the image is not calibrated. The TACs for a
+ * whole slice are stored in a reusable buffer in row-major order, one curve
+ * after the other:
+ * </p>
+ *
+ * <pre>
+ * buffer[(y * width + x) * frames + f]
+ * </pre>
+ *
+ * <p>
+ * If a {@link VoxelMask} is attached to the image when the engine is created,
+ * {@link #nextVoxel(int, int)} only visits the active voxels, so the callers
+ * can skip the masked background without reading or testing its TACs.
+ * </p>
+ *
+ * <p>
+ * Virtual stacks are read one plane at a time, so only the planes of the
+ * slice being processed are held in memory. Planes modified by the writing
+ * methods are stored back with {@link ImageStack#setPixels(Object, int)},
+ * which only {@link MappedStack} supports among the virtual stacks. When the
+ * stack is a {@link MappedStack}, reading a slice also prefetches the next
+ * slab of slices.
+ * </p>
+ *
+ * <p>
+ * Reading methods do not modify the state of this object, so a single engine
+ * can be shared by several threads as long as each one uses its own buffer.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class TACEngine {
+
+    private final ImageStack is;
+    private final CalibrationTable table;
+    private final int width, height, channels, slices, frames, channel;
+    private final double calzero;
+    // Calibrated value for each raw value (8 and 16-bit images only). It is
+    // null when the calibration function is the identity.
+    private final double[] ctable;
+    private final boolean identity;
+    // Attached mask, or null if every voxel is active
+    private final VoxelMask mask;
+    // Modified planes must be stored back (virtual stacks)
+    private final boolean virtual;
+    private final MappedStack mapped;
+
+    /**
+     * Creates a new engine that reads the first channel of the image.
+     * @param imp Dynamic image (HyperStack).
+     */
+    public TACEngine(ImagePlus imp) {
+        this(imp, 1);
+    }
+
+    /**
+     * Creates a new engine that reads the given channel of the image.
+     * @param imp Dynamic image (HyperStack).
+     * @param channel Channel to read (1-based).
+     */
+    public TACEngine(ImagePlus imp, int channel) {
+        int[] dim = imp.getDimensions();
+        this.width = dim[0];
+        this.height = dim[1];
+        this.channels = dim[2];
+        this.slices = dim[3];
+        this.frames = dim[4];
+        this.channel = channel;
+        this.is = imp.getStack();
+        this.table = CalibrationTable.get(imp);
+        this.calzero = table.getZero();
+        this.identity = table.isIdentity();
+        this.mask = VoxelMask.get(imp);
+        this.virtual = is.isVirtual();
+        this.mapped = is instanceof MappedStack ? (MappedStack) is : null;
+        // Calibration for every possible raw value, shared with the other
+        // engines of the image
+        this.ctable = table.getTable();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Number of voxels in each slice.
+     */
+    public int getSliceSize() {
+        return width * height;
+    }
+
+    /**
+     * @return The calibrated 0 value.
+     */
+    public double getCalibratedZero() {
+        return calzero;
+    }
+
+    /**
+     * @param slice Slice (1-based).
+     * @param frame Frame (1-based).
+     * @return The (1-based) stack index for the given slice and frame.
+     */
+    public int getStackIndex(int slice, int frame) {
+        return (frame - 1) * channels * slices + (slice - 1) * channels
+                + channel;
+    }
+
+    /**
+     * @return {@code true} if the writing methods can modify the image (it is
+     * not a virtual stack, or it is a writable {@link MappedStack}).
+     */
+    public boolean isWritable() {
+        return !virtual || (mapped != null && mapped.isWritable());
+    }
+
+    /**
+     * @return The mask attached to the image when this engine was created, or
+     * {@code null} if there is none.
+     */
+    public VoxelMask getMask() {
+        return mask;
+    }
+
+    /**
+     * Finds the next voxel of a slice that is not excluded by the attached
+     * mask (every voxel, when there is no mask). Typical use:
+     * <pre>
+     * for (int i = engine.nextVoxel(slice, 0); i >= 0;
+     *      i = engine.nextVoxel(slice, i + 1))
+     * </pre>
+     * The TACs of the returned voxels may still be masked in the data (see
+     * {@link #isMasked(double[], int)}).
+     * @param slice Slice (1-based).
+     * @param from First voxel index ({@code y * width + x}) to check.
+     * @return Index of the next voxel, or -1 if there are none.
+     */
+    public int nextVoxel(int slice, int from) {
+        if (mask != null)
+            return mask.nextActive(slice, from);
+        return from < width * height ? from : -1;
+    }
+
+    /**
+     * @return A new buffer big enough to hold all the TACs of a slice.
+     */
+    public double[] createSliceBuffer() {
+        return new double[width * height * frames];
+    }
+
+    /**
+     * @param voxels Number of voxels.
+     * @return A new buffer big enough to hold the TACs of that many voxels.
+     */
+    public double[] createVoxelBuffer(int voxels) {
+        return new double[voxels * frames];
+    }
+
+    /**
+     * Tests if the TAC stored in {@code buffer} at the given offset is masked.
+     * @param buffer Slice buffer filled by {@link #readSlice(int, double[])}.
+     * @param offset Position of the first frame of the TAC.
+     * @return {@code true} if it is masked, false otherwise.
+     */
+    public boolean isMasked(double[] buffer, int offset) {
+        return Utils.isMasked(buffer, offset, frames, calzero);
+    }
+
+    /**
+     * Reads the calibrated TACs of every voxel in the given slice.
+     * @param slice Slice (1-based).
+     * @param dest Destination buffer, with at least
+     * {@code width * height * frames} elements.
+     */
+    public void readSlice(int slice, double[] dest) {
+        int n = width * height;
+        if (mapped != null) mapped.prefetch(slice);
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                if (ctable == null)
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = p[i] & 0xff;
+                else
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = ctable[p[i] & 0xff];
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                if (ctable == null)
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = p[i] & 0xffff;
+                else
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = ctable[p[i] & 0xffff];
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                if (identity)
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = p[i];
+                else
+                    for (int i = 0, o = f; i < n; i++, o += frames)
+                        dest[o] = table.getFloatCValue(p[i]);
+            } else {
+                // Anything else goes through the generic (slow) path
+                int z = getStackIndex(slice, f + 1) - 1;
+                for (int i = 0, o = f; i < n; i++, o += frames)
+                    dest[o] = table.getCValue(
+                            is.getVoxel(i % width, i / width, z));
+            }
+        }
+    }
+
+    /**
+     * Reads the calibrated TACs of a subset of the voxels of a slice (usually
+     * the ones given by {@link ActiveVoxels#getOffsets(int)}). The TAC of the
+     * k-th voxel is stored at {@code dest[k * frames]}.
+     * @param slice Slice (1-based).
+     * @param offsets Voxel indexes ({@code y * width + x}) to read.
+     * @param dest Destination buffer, with at least
+     * {@code offsets.length * frames} elements.
+     */
+    public void readVoxels(int slice, int[] offsets, double[] dest) {
+        int n = offsets.length;
+        if (mapped != null) mapped.prefetch(slice);
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                if (ctable == null)
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = p[offsets[k]] & 0xff;
+                else
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = ctable[p[offsets[k]] & 0xff];
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                if (ctable == null)
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = p[offsets[k]] & 0xffff;
+                else
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = ctable[p[offsets[k]] & 0xffff];
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                if (identity)
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = p[offsets[k]];
+                else
+                    for (int k = 0, o = f; k < n; k++, o += frames)
+                        dest[o] = table.getFloatCValue(p[offsets[k]]);
+            } else {
+                int z = getStackIndex(slice, f + 1) - 1;
+                for (int k = 0, o = f; k < n; k++, o += frames)
+                    dest[o] = table.getCValue(
+                            is.getVoxel(offsets[k] % width,
+                                        offsets[k] / width, z));
+            }
+        }
+    }
+
+    /**
+     * Reads the calibrated values of a single frame in the given slice.
+     * @param slice Slice (1-based).
+     * @param frame Frame (1-based).
+     * @param dest Destination buffer, with at least {@code width * height}
+     * elements.
+     */
+    public void readFrame(int slice, int frame, double[] dest) {
+        int n = width * height;
+        if (mapped != null) mapped.prefetch(slice);
+        Object pixels = is.getPixels(getStackIndex(slice, frame));
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            if (ctable == null)
+                for (int i = 0; i < n; i++)
+                    dest[i] = p[i] & 0xff;
+            else
+                for (int i = 0; i < n; i++)
+                    dest[i] = ctable[p[i] & 0xff];
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            if (ctable == null)
+                for (int i = 0; i < n; i++)
+                    dest[i] = p[i] & 0xffff;
+            else
+                for (int i = 0; i < n; i++)
+                    dest[i] = ctable[p[i] & 0xffff];
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            if (identity)
+                for (int i = 0; i < n; i++)
+                    dest[i] = p[i];
+            else
+                for (int i = 0; i < n; i++)
+                    dest[i] = table.getFloatCValue(p[i]);
+        } else {
+            int z = getStackIndex(slice, frame) - 1;
+            for (int i = 0; i < n; i++)
+                dest[i] = table.getCValue(is.getVoxel(i % width, i / width, z));
+        }
+    }
+
+    /**
+     * Reads the calibrated TAC for a single voxel.
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param slice Slice (1-based).
+     * @param dest Destination array, with at least {@code frames} elements.
+     * @return {@code dest}, for convenience.
+     */
+    public double[] getTAC(int x, int y, int slice, double[] dest) {
+        int i = y * width + x;
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                int v = ((byte[]) pixels)[i] & 0xff;
+                dest[f] = ctable == null ? v : ctable[v];
+            } else if (pixels instanceof short[]) {
+                int v = ((short[]) pixels)[i] & 0xffff;
+                dest[f] = ctable == null ? v : ctable[v];
+            } else if (pixels instanceof float[]) {
+                float v = ((float[]) pixels)[i];
+                dest[f] = identity ? v : table.getFloatCValue(v);
+            } else {
+                dest[f] = table.getCValue(
+                        is.getVoxel(x, y, getStackIndex(slice, f + 1) - 1));
+            }
+        }
+        return dest;
+    }
+
+    // Modified planes of virtual stacks must be stored back
+    private void _store(int slice, int f, Object pixels) {
+        if (virtual)
+            is.setPixels(pixels, getStackIndex(slice, f + 1));
+    }
+
+    private void _checkWritable() {
+        if (!isWritable())
+            throw new IllegalStateException(
+                    "Virtual stacks cannot be modified in place");
+    }
+
+    /**
+     * Writes the TACs stored in {@code src} back into the given slice. The
+     * values are written as raw values, with the same rounding and clipping
+     * rules used by {@link ImageStack#setVoxel(int, int, int, double)}.
+     * @param slice Slice (1-based).
+     * @param src Slice buffer with the values to write.
+     * @param include If not {@code null}, only the voxels with a {@code true}
+     * value in this array are written.
+     */
+    public void writeSlice(int slice, double[] src, boolean[] include) {
+        int n = width * height;
+        _checkWritable();
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0, o = f; i < n; i++, o += frames) {
+                    if (include != null && !include[i]) continue;
+                    double v = src[o];
+                    if (v > 255.0) v = 255.0;
+                    else if (v < 0.0) v = 0.0;
+                    p[i] = (byte) (v + 0.5);
+                }
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int i = 0, o = f; i < n; i++, o += frames) {
+                    if (include != null && !include[i]) continue;
+                    double v = src[o];
+                    if (v > 65535.0) v = 65535.0;
+                    else if (v < 0.0) v = 0.0;
+                    p[i] = (short) (v + 0.5);
+                }
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                for (int i = 0, o = f; i < n; i++, o += frames) {
+                    if (include != null && !include[i]) continue;
+                    p[i] = (float) src[o];
+                }
+            } else {
+                int z = getStackIndex(slice, f + 1) - 1;
+                for (int i = 0, o = f; i < n; i++, o += frames) {
+                    if (include != null && !include[i]) continue;
+                    is.setVoxel(i % width, i / width, z, src[o]);
+                }
+            }
+            _store(slice, f, pixels);
+        }
+    }
+
+    /**
+     * Writes back TACs read with {@link #readVoxels(int, int[], double[])},
+     * with the same rounding and clipping rules as
+     * {@link #writeSlice(int, double[], boolean[])}.
+     * @param slice Slice (1-based).
+     * @param offsets Voxel indexes ({@code y * width + x}) to write.
+     * @param src Buffer with the values to write, one TAC per voxel.
+     */
+    public void writeVoxels(int slice, int[] offsets, double[] src) {
+        int n = offsets.length;
+        _checkWritable();
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int k = 0, o = f; k < n; k++, o += frames) {
+                    double v = src[o];
+                    if (v > 255.0) v = 255.0;
+                    else if (v < 0.0) v = 0.0;
+                    p[offsets[k]] = (byte) (v + 0.5);
+                }
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int k = 0, o = f; k < n; k++, o += frames) {
+                    double v = src[o];
+                    if (v > 65535.0) v = 65535.0;
+                    else if (v < 0.0) v = 0.0;
+                    p[offsets[k]] = (short) (v + 0.5);
+                }
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                for (int k = 0, o = f; k < n; k++, o += frames)
+                    p[offsets[k]] = (float) src[o];
+            } else {
+                int z = getStackIndex(slice, f + 1) - 1;
+                for (int k = 0, o = f; k < n; k++, o += frames)
+                    is.setVoxel(offsets[k] % width, offsets[k] / width, z,
+                                src[o]);
+            }
+            _store(slice, f, pixels);
+        }
+    }
+
+    /**
+     * Writes the given voxels of a single frame, stored as read with
+     * {@link #readFrame(int, int, double[])}, with the same rounding and
+     * clipping rules as {@link #writeSlice(int, double[], boolean[])}.
+     * @param slice Slice (1-based).
+     * @param frame Frame (1-based).
+     * @param offsets Voxel indexes ({@code y * width + x}) to write.
+     * @param src Buffer with the values of the frame, {@code width * height}
+     * elements.
+     */
+    public void writeFrame(int slice, int frame, int[] offsets,
+                           double[] src) {
+        _checkWritable();
+        Object pixels = is.getPixels(getStackIndex(slice, frame));
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i : offsets) {
+                double v = src[i];
+                if (v > 255.0) v = 255.0;
+                else if (v < 0.0) v = 0.0;
+                p[i] = (byte) (v + 0.5);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i : offsets) {
+                double v = src[i];
+                if (v > 65535.0) v = 65535.0;
+                else if (v < 0.0) v = 0.0;
+                p[i] = (short) (v + 0.5);
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i : offsets)
+                p[i] = (float) src[i];
+        } else {
+            int z = getStackIndex(slice, frame) - 1;
+            for (int i : offsets)
+                is.setVoxel(i % width, i / width, z, src[i]);
+        }
+        _store(slice, frame - 1, pixels);
+    }
+
+    /**
+     * Sets to 0 (raw value) every frame of the voxels of a slice that are not
+     * active in the given mask.
+     * @param slice Slice (1-based).
+     * @param keep Mask with the voxels to keep.
+     */
+    public void clearSlice(int slice, VoxelMask keep) {
+        int n = width * height;
+        _checkWritable();
+        for (int f = 0; f < frames; f++) {
+            Object pixels = is.getPixels(getStackIndex(slice, f + 1));
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0; i < n; i++)
+                    if (!keep.isActive(slice, i)) p[i] = 0;
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int i = 0; i < n; i++)
+                    if (!keep.isActive(slice, i)) p[i] = 0;
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < n; i++)
+                    if (!keep.isActive(slice, i)) p[i] = 0f;
+            } else {
+                int z = getStackIndex(slice, f + 1) - 1;
+                for (int i = 0; i < n; i++)
+                    if (!keep.isActive(slice, i))
+                        is.setVoxel(i % width, i / width, z, 0.0);
+            }
+            _store(slice, f, pixels);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package limtools;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Accumulates per-frame statistics (mean, standard deviation, minimum,
+ * maximum and number of voxels) of a set of time-activity curves, for one or
+ * several groups of voxels (e.g., the regions of a label image).
+ * </p>
+ *
+ * <p>
+ * All the accumulators are stored in primitive arrays, so adding a TAC does
+ * not allocate anything. TACs are added with Welford's update of the mean
+ * and of the sum of squared deviations, and partial accumulators (e.g., one
+ * per slice) are combined with the pairwise formula of Chan et al., as in
+ * {@link TACCovariance}. This keeps the precision for masks with millions of
+ * voxels and avoids the cancellation of the naive sum of squares when the
+ * mean is large compared to the SD.
+ * </p>
+ *
+ * <p>
+ * Groups without any TAC have NaN mean, SD, minimum and maximum.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class TACStatistics {
+
+    private final int groups, frames;
+    private final long[] count;
+    // groups * frames elements each: running mean, sum of the squared
+    // deviations from it, minimum and maximum
+    private final double[] mean, m2, min, max;
+
+    /**
+     * Creates an empty accumulator.
+     * @param groups Number of groups of voxels.
+     * @param frames Number of frames of each TAC.
+     */
+    public TACStatistics(int groups, int frames) {
+        this.groups = groups;
+        this.frames = frames;
+        int n = groups * frames;
+        count = new long[groups];
+        mean = new double[n];
+        m2 = new double[n];
+        min = new double[n];
+        max = new double[n];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+    }
+
+    public int getGroups() {
+        return groups;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Adds a TAC to a group.
+     * @param group Group index.
+     * @param buffer Buffer that contains the TAC.
+     * @param offset Position of the first frame of the TAC.
+     */
+    public void add(int group, double[] buffer, int offset) {
+        long n = ++count[group];
+        int base = group * frames;
+        for (int f = 0; f < frames; f++) {
+            double v = buffer[offset + f];
+            int i = base + f;
+            double d = v - mean[i];
+            mean[i] += d / n;
+            m2[i] += d * (v - mean[i]);
+            if (v < min[i]) min[i] = v;
+            if (v > max[i]) max[i] = v;
+        }
+    }
+
+    /**
+     * Adds the contents of another accumulator to this one.
+     * @param other Accumulator with the same number of groups and frames.
+     */
+    public void merge(TACStatistics other) {
+        for (int g = 0; g < groups; g++)
+            _merge(other, g, g);
+    }
+
+    /**
+     * Adds the contents of another accumulator, with fewer groups, to this
+     * one: group {@code g} of {@code other} is added to group
+     * {@code targets[g]}. This way, a partial accumulator only needs the
+     * groups that are actually present (e.g., the labels of one slice).
+     * @param other Accumulator with the same number of frames.
+     * @param targets Group of this accumulator for each group of
+     * {@code other}.
+     */
+    public void merge(TACStatistics other, int[] targets) {
+        for (int g = 0; g < other.groups; g++)
+            _merge(other, g, targets[g]);
+    }
+
+    private void _merge(TACStatistics other, int from, int to) {
+        long nb = other.count[from];
+        if (nb == 0) return;
+        long na = count[to];
+        long n = na + nb;
+        double w = (double) na * nb / n;
+        int j = from * frames;
+        for (int i = to * frames; i < (to + 1) * frames; i++, j++) {
+            double delta = other.mean[j] - mean[i];
+            mean[i] += delta * nb / n;
+            m2[i] += other.m2[j] + delta * delta * w;
+            if (other.min[j] < min[i]) min[i] = other.min[j];
+            if (other.max[j] > max[i]) max[i] = other.max[j];
+        }
+        count[to] = n;
+    }
+
+    /**
+     * @return Number of TACs added to the group.
+     */
+    public long getCount(int group) {
+        return count[group];
+    }
+
+    /**
+     * @return Mean value of the group for the given frame (0-based), or NaN
+     * if the group is empty.
+     */
+    public double getMean(int group, int frame) {
+        return count[group] == 0 ? Double.NaN
+                                 : mean[group * frames + frame];
+    }
+
+    /**
+     * @return Sample standard deviation of the group for the given frame
+     * (0-based), 0 if the group has a single TAC or NaN if it is empty.
+     */
+    public double getSD(int group, int frame) {
+        long n = count[group];
+        if (n == 0)
+            return Double.NaN;
+        if (n == 1)
+            return 0.0;
+        double var = m2[group * frames + frame] / (n - 1);
+        return var > 0.0 ? Math.sqrt(var) : 0.0;
+    }
+
+    /**
+     * @return Minimum value of the group for the given frame (0-based), or
+     * NaN if the group is empty.
+     */
+    public double getMin(int group, int frame) {
+        return count[group] == 0 ? Double.NaN : min[group * frames + frame];
+    }
+
+    /**
+     * @return Maximum value of the group for the given frame (0-based), or
+     * NaN if the group is empty.
+     */
+    public double getMax(int group, int frame) {
+        return count[group] == 0 ? Double.NaN : max[group * frames + frame];
+    }
+}
\ No newline at end of file
@@ -3,6 +3,7 @@ package limtools;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.measure.ResultsTable;
 
 /**
  * Utility class to store generic computational methods.
@@ -12,6 +13,9 @@ import ij.measure.Calibration;
  */
 public class Utils {
     
+    /** Maximum label accepted in label images (memory grows with it). */
+    public static final int MAX_LABEL = 65535;
+    
     /**
      * Tests if a given time-activity curve is masked in the original image.
      * @param tac The time-activity curve to test.
@@ -23,8 +27,27 @@ public class Utils {
             if (d != CALZERO && d != 0.0) return false;                
         return true;
     }
-    
+
     /**
+     * Tests if a time-activity curve stored inside a bigger buffer (such as
+     * the ones filled by {@link TACEngine#readSlice(int, double[])}) is
+     * masked in the original image.
+     * @param buffer The buffer that contains the time-activity curve.
+     * @param offset Position of the first element of the curve.
+     * @param length Number of elements of the curve.
+     * @param CALZERO The calibrated 0 value.
+     * @return {@code true} if it is masked, false otherwise.
+     */
+    public static boolean isMasked(double [] buffer, int offset, int length,
+                                   double CALZERO) {
+        for (int i = offset; i < offset + length; i++)
+            if (buffer[i] != CALZERO && buffer[i] != 0.0) return false;
+        return true;
+    }
+
+    /**
+     * Reads a single time-activity curve. Use a {@link TACEngine} instead
+     * when iterating over many voxels.
      * @param x x coordinate
      * @param y y coordinate
      * @param slice slice coordinate
@@ -40,31 +63,145 @@ public class Utils {
 
         // Alloc space for the result
         double[] result = new double[t];
+        // Shared lookup table, unless another calibration is given
+        CalibrationTable table = cal == imp.getCalibration()
+                ? CalibrationTable.get(imp) : null;
 
         // Set the desired slice and iterate through the frames
         for (int frame = 1; frame <= t; frame++) {
             // Use first channel
             int stack_number = imp.getStackIndex(1, slice, frame);            
             // Use calibration to return true value
-            result[frame - 1] = cal.getCValue(
-                                    is.getVoxel(x, y, stack_number - 1));
+            double v = is.getVoxel(x, y, stack_number - 1);
+            result[frame - 1] = table != null ? table.getCValue(v)
+                                              : cal.getCValue(v);
         }
 
         return result;
         
     }
     
+    /**
+     * Reads a time-activity curve (e.g., a reference region) from the
+     * "Activity" column of a table written by {@link Measure_Time_Activity}
+     * or {@link Label_Time_Activity}.
+     * @param rt The table.
+     * @param label Label whose rows are read (only used if the table has a
+     * "Label" column).
+     * @param frames Expected number of frames.
+     * @return The curve.
+     * @throws IllegalArgumentException if the table does not hold such a
+     * curve.
+     */
+    public static double [] readTAC(ResultsTable rt, int label, int frames) {
+        int activity = rt.getColumnIndex("Activity");
+        if (activity == ResultsTable.COLUMN_NOT_FOUND)
+            throw new IllegalArgumentException(
+                    "The Results table has no Activity column");
+        int labels = rt.getColumnIndex("Label");
+        double [] res = new double[frames];
+        int n = 0;
+        for (int row = 0; row < rt.getCounter(); row++) {
+            if (labels != ResultsTable.COLUMN_NOT_FOUND
+                    && (int) rt.getValueAsDouble(labels, row) != label)
+                continue;
+            if (n == frames) {
+                n++;
+                break;
+            }
+            res[n++] = rt.getValueAsDouble(activity, row);
+        }
+        if (n != frames)
+            throw new IllegalArgumentException("The reference TAC must have "
+                                               + frames + " frames");
+        return res;
+    }
+
+    /**
+     * Parses a time-activity curve given as values separated by commas or
+     * spaces.
+     * @param spec The values.
+     * @param frames Expected number of frames.
+     * @return The curve.
+     * @throws IllegalArgumentException if the list is not valid.
+     */
+    public static double [] parseTAC(String spec, int frames) {
+        String [] items = spec.trim().split("[,\\s]+");
+        if (items.length != frames)
+            throw new IllegalArgumentException("The reference TAC must have "
+                                               + frames + " frames");
+        double [] res = new double[frames];
+        try {
+            for (int i = 0; i < frames; i++)
+                res[i] = Double.parseDouble(items[i]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid TAC values: " + spec);
+        }
+        return res;
+    }
+
     /**
      * Returns the maximum value for the given activity curve.
      * @param data The time-activity curve.
      * @return The maximum value.
      */
     public static double getMax(double [] data) {
+        return getMax(data, 0, data.length);
+    }
+
+    /**
+     * Returns the maximum value for an activity curve stored inside a bigger
+     * buffer.
+     * @param buffer The buffer that contains the time-activity curve.
+     * @param offset Position of the first element of the curve.
+     * @param length Number of elements of the curve.
+     * @return The maximum value.
+     */
+    public static double getMax(double [] buffer, int offset, int length) {
         double res = -Double.MAX_VALUE;
-        for (double d : data)
-            if (d > res)
-                res = d;
+        for (int i = offset; i < offset + length; i++)
+            if (buffer[i] > res)
+                res = buffer[i];
         return res;
     }
 
+    /**
+     * Reads the integer labels of a slice of a label image. Values of 32-bit
+     * images are truncated to int.
+     * @param is Label image stack (a single channel and frame).
+     * @param slice Slice (1-based).
+     * @param dest Destination array, one element per voxel in the slice.
+     * @return The maximum label found in the slice.
+     * @throws IllegalArgumentException if there are negative labels.
+     */
+    public static int readLabels(ImageStack is, int slice, int [] dest) {
+        Object pixels = is.getPixels(slice);
+        int max = 0;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0; i < dest.length; i++)
+                dest[i] = p[i] & 0xff;
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0; i < dest.length; i++)
+                dest[i] = p[i] & 0xffff;
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0; i < dest.length; i++)
+                dest[i] = (int) p[i];
+        } else {
+            int width = is.getWidth();
+            for (int i = 0; i < dest.length; i++)
+                dest[i] = (int) is.getVoxel(i % width, i / width, slice - 1);
+        }
+        for (int l : dest) {
+            if (l < 0)
+                throw new IllegalArgumentException(
+                        "Labels must be non-negative");
+            if (l > max)
+                max = l;
+        }
+        return max;
+    }
+
 }
@@ -0,0 +1,238 @@
+package limtools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import limtools.SliceExecutor.SliceTask;
+
+/**
+ * <p>
+ * Compact, non-destructive mask: one bit per voxel, packed in {@code long}
+ * words, one bitset per slice. A voxel is active when its bit is set.
+ * </p>
+ *
+ * <p>
+ * A mask can be attached to a dynamic image (as an image property) instead
+ * of setting the masked voxels to 0. The plugins that work with TACs (through
+ * {@link TACEngine}) then iterate only over the active voxels, skipping the
+ * background entirely, and the original data is kept intact.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class VoxelMask {
+
+    /** Name of the image property that holds the attached mask. */
+    public static final String PROPERTY = "limtools.mask";
+
+    private final int width, height, slices;
+    private final long[][] bits;
+
+    /**
+     * Creates an empty mask (no active voxels).
+     * @param width Width of each slice.
+     * @param height Height of each slice.
+     * @param slices Number of slices.
+     */
+    public VoxelMask(int width, int height, int slices) {
+        this.width = width;
+        this.height = height;
+        this.slices = slices;
+        bits = new long[slices][(width * height + 63) >>> 6];
+    }
+
+    /**
+     * Builds a mask from a static image: voxels whose value, cast to int, is
+     * not 0 are active.
+     * @param mask Static mask image.
+     * @return The new mask.
+     */
+    public static VoxelMask fromImage(ImagePlus mask) {
+        int[] dim = mask.getDimensions();
+        final VoxelMask res = new VoxelMask(dim[0], dim[1], dim[3]);
+        final ImageStack is = mask.getStack();
+        SliceExecutor.run(dim[3], new SliceTask<Void, Void>() {
+            @Override
+            public Void process(int slice, Void state) {
+                res.readSlice(is, slice);
+                return null;
+            }
+        });
+        return res;
+    }
+
+    // Sets the bits of a slice from the pixels of a mask slice
+    private void readSlice(ImageStack is, int slice) {
+        pack(is, slice, bits[slice - 1]);
+    }
+
+    /**
+     * Packs a slice of a mask image into bits: voxels whose value, cast to
+     * int, is not 0 are set. Whole 64-voxel words are built at once.
+     * @param is Mask stack.
+     * @param slice Slice (1-based).
+     * @param words Destination, with at least {@code (width * height + 63) /
+     * 64} elements. It is overwritten.
+     */
+    static void pack(ImageStack is, int slice, long[] words) {
+        Object pixels = is.getPixels(slice);
+        int width = is.getWidth();
+        int n = width * is.getHeight();
+        for (int w = 0, i = 0; i < n; w++) {
+            int end = Math.min(n, i + 64);
+            long word = 0;
+            if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int b = 0; i < end; i++, b++)
+                    if (p[i] != 0) word |= 1L << b;
+            } else if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int b = 0; i < end; i++, b++)
+                    if (p[i] != 0) word |= 1L << b;
+            } else if (pixels instanceof float[]) {
+                float[] p = (float[]) pixels;
+                for (int b = 0; i < end; i++, b++)
+                    if ((int) p[i] != 0) word |= 1L << b;
+            } else {
+                for (int b = 0; i < end; i++, b++)
+                    if ((int) is.getVoxel(i % width, i / width, slice - 1) != 0)
+                        word |= 1L << b;
+            }
+            words[w] = word;
+        }
+    }
+
+    /**
+     * Attaches this mask to a dynamic image.
+     * @param imp Dynamic image with the same spatial dimensions.
+     * @throws IllegalArgumentException if the dimensions do not agree.
+     */
+    public void attach(ImagePlus imp) {
+        if (!matches(imp))
+            throw new IllegalArgumentException(
+                    "Dynamic image and mask spatial dimensions do not agree");
+        imp.setProperty(PROPERTY, this);
+    }
+
+    /**
+     * @param imp A dynamic image.
+     * @return The mask attached to the image, or {@code null} if there is no
+     * mask or it does not fit the current image dimensions.
+     */
+    public static VoxelMask get(ImagePlus imp) {
+        Object mask = imp.getProperty(PROPERTY);
+        if (mask instanceof VoxelMask && ((VoxelMask) mask).matches(imp))
+            return (VoxelMask) mask;
+        return null;
+    }
+
+    /**
+     * Removes the mask attached to an image, if any.
+     * @param imp A dynamic image.
+     */
+    public static void detach(ImagePlus imp) {
+        imp.setProperty(PROPERTY, null);
+    }
+
+    /**
+     * @return {@code true} if the image has the same spatial dimensions.
+     */
+    public boolean matches(ImagePlus imp) {
+        int[] dim = imp.getDimensions();
+        return dim[0] == width && dim[1] == height && dim[3] == slices;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    /**
+     * @param slice Slice (1-based).
+     * @param index Voxel index inside the slice ({@code y * width + x}).
+     * @return {@code true} if the voxel is active.
+     */
+    public boolean isActive(int slice, int index) {
+        return (bits[slice - 1][index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Sets the state of a voxel.
+     * @param slice Slice (1-based).
+     * @param index Voxel index inside the slice ({@code y * width + x}).
+     * @param active New state.
+     */
+    public void set(int slice, int index, boolean active) {
+        if (active)
+            bits[slice - 1][index >>> 6] |= 1L << index;
+        else
+            bits[slice - 1][index >>> 6] &= ~(1L << index);
+    }
+
+    /**
+     * Finds the next active voxel of a slice. Typical use:
+     * <pre>
+     * for (int i = mask.nextActive(slice, 0); i >= 0;
+     *      i = mask.nextActive(slice, i + 1))
+     * </pre>
+     * @param slice Slice (1-based).
+     * @param from First voxel index to check.
+     * @return Index of the next active voxel, or -1 if there are none.
+     */
+    public int nextActive(int slice, int from) {
+        long[] words = bits[slice - 1];
+        int w = from >>> 6;
+        if (from >= width * height || w >= words.length)
+            return -1;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0) {
+                int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                return i < width * height ? i : -1;
+            }
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+    }
+
+    /**
+     * @param slice Slice (1-based).
+     * @return Number of active voxels in the slice.
+     */
+    public int count(int slice) {
+        int n = 0;
+        for (long word : bits[slice - 1])
+            n += Long.bitCount(word);
+        return n;
+    }
+
+    /**
+     * @return Number of active voxels in the whole mask.
+     */
+    public long count() {
+        long n = 0;
+        for (int slice = 1; slice <= slices; slice++)
+            n += count(slice);
+        return n;
+    }
+
+    /**
+     * Gives direct access to the packed bits of a slice. Voxel {@code i} is
+     * bit {@code i % 64} of word {@code i / 64}; the unused bits of the last
+     * word are always 0.
+     * @param slice Slice (1-based).
+     * @return The words of the slice (not a copy).
+     */
+    public long[] getWords(int slice) {
+        return bits[slice - 1];
+    }
+}
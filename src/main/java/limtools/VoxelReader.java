@@ -0,0 +1,165 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Reader for the binary voxel files written by {@link VoxelWriter}. The file
+ * is memory-mapped (in windows of up to 1 GB) and the values are scattered
+ * directly from the mapping into the pixel arrays of the target image, so
+ * nothing but the resulting image is held in memory.
+ * </p>
+ *
+ * <p>
+ * Columns are numbered as in the ImageJ results table produced by
+ * {@link Dynamic_to_Results}: 0, 1 and 2 are the coordinates and column
+ * {@code 3 + i} holds frame {@code i}.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class VoxelReader implements Closeable {
+
+    private static final long WINDOW = 1L << 30;
+
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int width, height, slices, frames;
+    private final long count;
+    private final int record;
+
+    private VoxelReader(File file) throws IOException {
+        raf = new RandomAccessFile(file, "r");
+        channel = raf.getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(VoxelWriter.HEADER_SIZE)
+                                          .order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining())
+                if (channel.read(header) < 0)
+                    throw new IOException("Truncated header");
+            header.flip();
+            if (header.getInt() != VoxelWriter.MAGIC)
+                throw new IOException("Not a voxel file");
+            int version = header.getInt();
+            if (version != VoxelWriter.VERSION)
+                throw new IOException("Unsupported version " + version);
+            width = header.getInt();
+            height = header.getInt();
+            slices = header.getInt();
+            frames = header.getInt();
+            count = header.getLong();
+            record = 12 + 4 * frames;
+            if (width < 1 || height < 1 || slices < 1 || frames < 0
+                    || count < 0 || channel.size() < VoxelWriter.HEADER_SIZE
+                    + count * record)
+                throw new IOException("Corrupted header");
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a voxel file and reads its header.
+     * @param file Binary voxel file.
+     * @return The new reader.
+     * @throws IOException if the file cannot be read or is not valid.
+     */
+    public static VoxelReader open(File file) throws IOException {
+        return new VoxelReader(file);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSlices() {
+        return slices;
+    }
+
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return Number of voxels (records) in the file.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Rebuilds one or more value columns into a 32-bit image, in a single
+     * pass over the file. Each column becomes a channel of the result.
+     * @param title Title of the new image.
+     * @param columns Columns to rebuild (3 or greater).
+     * @return The new image.
+     * @throws IOException if a read fails or a record is out of bounds.
+     */
+    public ImagePlus toImage(String title, int[] columns) throws IOException {
+        int nc = columns.length;
+        for (int c : columns)
+            if (c < 3 || c >= 3 + frames)
+                throw new IllegalArgumentException("Column " + c
+                                                   + " does not exist");
+
+        ImagePlus imp = IJ.createImage(title, "32-bit", width, height, nc,
+                                       slices, 1);
+        ImageStack is = imp.getStack();
+        float[][] pixels = new float[nc * slices][];
+        for (int i = 0; i < pixels.length; i++)
+            pixels[i] = (float[]) is.getPixels(i + 1);
+        // Byte offset of each column inside a record
+        int[] offsets = new int[nc];
+        for (int c = 0; c < nc; c++)
+            offsets[c] = 12 + 4 * (columns[c] - 3);
+
+        long perWindow = Math.max(1, WINDOW / record);
+        for (long first = 0; first < count; first += perWindow) {
+            IJ.showProgress((double) first / count);
+            long n = Math.min(perWindow, count - first);
+            MappedByteBuffer mb = channel.map(FileChannel.MapMode.READ_ONLY,
+                    VoxelWriter.HEADER_SIZE + first * record, n * record);
+            mb.order(ByteOrder.LITTLE_ENDIAN);
+            for (int r = 0, base = 0; r < n; r++, base += record) {
+                int x = mb.getInt(base);
+                int y = mb.getInt(base + 4);
+                int slice = mb.getInt(base + 8);
+                if (x < 0 || x >= width || y < 0 || y >= height
+                        || slice < 1 || slice > slices)
+                    throw new IOException("Record " + (first + r)
+                                          + " is out of bounds");
+                int index = y * width + x;
+                int plane = (slice - 1) * nc;
+                for (int c = 0; c < nc; c++)
+                    pixels[plane + c][index] = mb.getFloat(base + offsets[c]);
+            }
+        }
+        IJ.showProgress(1.0);
+
+        if (nc > 1)
+            imp.setOpenAsHyperStack(true);
+        return imp;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
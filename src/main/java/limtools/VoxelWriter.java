@@ -0,0 +1,188 @@
+package limtools;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * <p>
+ * Streaming writer for the TACs of a dynamic image, one voxel per row. Rows
+ * go straight to disk as they are produced, so the memory used does not
+ * depend on the number of voxels. Two formats are available:
+ * </p>
+ *
+ * <ul>
+ * <li>CSV ({@code .csv} files): a header with the column names
+ * ({@code x,y,slice,F0,F1,...}), followed by one line per voxel.</li>
+ * <li>Binary (any other extension, {@code .lvx} by convention): a 32-byte
+ * little-endian header followed by fixed-size records. See
+ * {@link #HEADER_SIZE} for the layout.</li>
+ * </ul>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public abstract class VoxelWriter implements Closeable {
+
+    /** Magic number at the beginning of binary files ("LIMV"). */
+    public static final int MAGIC = 0x564d494c;
+    /** Version of the binary format. */
+    public static final int VERSION = 1;
+    /**
+     * <p>Size, in bytes, of the binary header:</p>
+     * <pre>
+     * int32 magic, int32 version, int32 width, int32 height, int32 slices,
+     * int32 frames, int64 number of records
+     * </pre>
+     * <p>Each record is {@code int32 x, int32 y, int32 slice} followed by
+     * {@code frames} float32 values.</p>
+     */
+    public static final int HEADER_SIZE = 32;
+
+    protected final int frames;
+    private long count = 0;
+
+    protected VoxelWriter(int frames) {
+        this.frames = frames;
+    }
+
+    /**
+     * Creates a writer, choosing the format from the file extension.
+     * @param file Destination file.
+     * @param dim Dimensions of the dynamic image, as returned by
+     * {@link ij.ImagePlus#getDimensions()}.
+     * @return The new writer.
+     * @throws IOException if the file cannot be created.
+     */
+    public static VoxelWriter create(File file, int[] dim) throws IOException {
+        if (file.getName().toLowerCase().endsWith(".csv"))
+            return new CSV(file, dim[4]);
+        else
+            return new Binary(file, dim);
+    }
+
+    /**
+     * Writes the TAC of one voxel.
+     * @param x x coordinate
+     * @param y y coordinate
+     * @param slice Slice (1-based).
+     * @param buffer Buffer that contains the TAC.
+     * @param offset Position of the first frame of the TAC.
+     * @throws IOException on write errors.
+     */
+    public void write(int x, int y, int slice, double[] buffer, int offset)
+            throws IOException {
+        writeRecord(x, y, slice, buffer, offset);
+        count++;
+    }
+
+    /**
+     * @return Number of voxels written so far.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    protected abstract void writeRecord(int x, int y, int slice,
+                                        double[] buffer, int offset)
+            throws IOException;
+
+    /**
+     * Buffered text output.
+     */
+    private static class CSV extends VoxelWriter {
+
+        private final Writer out;
+
+        CSV(File file, int frames) throws IOException {
+            super(frames);
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(file), "US-ASCII"), 1 << 16);
+            out.write("x,y,slice");
+            for (int i = 0; i < frames; i++)
+                out.write(",F" + i);
+            out.write('\n');
+        }
+
+        @Override
+        protected void writeRecord(int x, int y, int slice, double[] buffer,
+                                   int offset) throws IOException {
+            out.write(Integer.toString(x));
+            out.write(',');
+            out.write(Integer.toString(y));
+            out.write(',');
+            out.write(Integer.toString(slice));
+            for (int i = offset; i < offset + frames; i++) {
+                out.write(',');
+                out.write(Double.toString(buffer[i]));
+            }
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Little-endian fixed-size records written through a file channel.
+     */
+    private static class Binary extends VoxelWriter {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final ByteBuffer buf;
+
+        Binary(File file, int[] dim) throws IOException {
+            super(dim[4]);
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            channel = raf.getChannel();
+            int record = 12 + 4 * frames;
+            buf = ByteBuffer.allocateDirect(Math.max(record, 1 << 20))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+            buf.putInt(MAGIC).putInt(VERSION);
+            buf.putInt(dim[0]).putInt(dim[1]).putInt(dim[3]).putInt(frames);
+            buf.putLong(0L); // Number of records, set on close
+        }
+
+        @Override
+        protected void writeRecord(int x, int y, int slice, double[] buffer,
+                                   int offset) throws IOException {
+            if (buf.remaining() < 12 + 4 * frames)
+                flush();
+            buf.putInt(x).putInt(y).putInt(slice);
+            for (int i = offset; i < offset + frames; i++)
+                buf.putFloat((float) buffer[i]);
+        }
+
+        private void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf);
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                ByteBuffer n = ByteBuffer.allocate(8)
+                                         .order(ByteOrder.LITTLE_ENDIAN);
+                n.putLong(getCount()).flip();
+                channel.write(n, HEADER_SIZE - 8);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package limtools;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.GenericDialog;
+import ij.io.DirectoryChooser;
+import ij.measure.ResultsTable;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>
+ * This plugin processes a dynamic study while it is being acquired: it
+ * watches a directory where the frames are written one by one (one 3D image
+ * per file) and, as each frame arrives, updates the mean TAC of the unmasked
+ * voxels (or of every region of a label image), the running average image
+ * and the AUC image with a {@link FrameAccumulator}.
+ * </p>
+ *
+ * <p>
+ * The directory is polled at a fixed interval. Files are taken in natural
+ * name order (so {@code frame10} comes after {@code frame9}), and only once
+ * their size has not changed between two polls, so frames that are still
+ * being written are not read. Running the plugin again stops the watcher.
+ * </p>
+ *
+ * @author José María Mateos - jmmateos@hggm.es
+ *
+ */
+public class Watch_Frames implements PlugIn {
+
+    private static final String NONE = "None";
+
+    // Watcher currently running, if any
+    private static Watcher current;
+
+    @Override
+    public void run(String arg0) {
+
+        synchronized (Watch_Frames.class) {
+            if (current != null && current.isAlive()) {
+                if (IJ.showMessageWithCancel("Watch Frames", "Stop watching "
+                                             + current.dir + "?")) {
+                    current.interrupt();
+                    current = null;
+                }
+                return;
+            }
+        }
+
+        String path = new DirectoryChooser("Directory of the frames")
+                              .getDirectory();
+        if (path == null) return;
+
+        // Optional mask and label images
+        int [] ids = WindowManager.getIDList();
+        String [] images = new String[ids == null ? 1 : ids.length + 1];
+        images[0] = NONE;
+        for (int i = 1; i < images.length; i++)
+            images[i] = WindowManager.getImage(ids[i - 1]).getTitle();
+
+        GenericDialog gd = new GenericDialog("Watch frames");
+        gd.addStringField("File suffix:", ".tif", 10);
+        gd.addStringField("Frame durations:", "", 30);
+        gd.addMessage("(the last duration is repeated for the next frames)");
+        gd.addChoice("Mask:", images, NONE);
+        gd.addChoice("Labels:", images, NONE);
+        gd.addNumericField("Poll interval (s):", 2, 1);
+        gd.showDialog();
+
+        // If user canceled, return
+        if (gd.wasCanceled()) return;
+
+        String suffix = gd.getNextString().trim();
+        String durations = gd.getNextString().trim();
+        String mask = gd.getNextChoice();
+        String labels = gd.getNextChoice();
+        double interval = gd.getNextNumber();
+
+        Watcher watcher;
+        try {
+            FrameTimes times = null;
+            if (!durations.isEmpty())
+                times = FrameTimes.parse(durations,
+                                         durations.split("[,\\s]+").length);
+            watcher = new Watcher(new File(path), suffix, times,
+                    mask.equals(NONE) ? null : WindowManager.getImage(mask),
+                    labels.equals(NONE) ? null
+                                        : WindowManager.getImage(labels),
+                    (long) (interval * 1000));
+        } catch (IllegalArgumentException e) {
+            IJ.error(e.getMessage());
+            return;
+        }
+
+        synchronized (Watch_Frames.class) {
+            current = watcher;
+        }
+        watcher.start();
+    }
+
+    /**
+     * Compares file names by their text and the value of the numbers they
+     * contain, so {@code frame9} comes before {@code frame10}.
+     */
+    static final Comparator<String> NATURAL_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0, j = 0;
+            while (i < a.length() && j < b.length()) {
+                char ca = a.charAt(i), cb = b.charAt(j);
+                if (Character.isDigit(ca) && Character.isDigit(cb)) {
+                    int ei = i, ej = j;
+                    while (ei < a.length() && Character.isDigit(a.charAt(ei)))
+                        ei++;
+                    while (ej < b.length() && Character.isDigit(b.charAt(ej)))
+                        ej++;
+                    // Compare the numbers without leading zeros
+                    String na = a.substring(i, ei).replaceFirst("^0+", "");
+                    String nb = b.substring(j, ej).replaceFirst("^0+", "");
+                    if (na.length() != nb.length())
+                        return na.length() - nb.length();
+                    int c = na.compareTo(nb);
+                    if (c != 0) return c;
+                    i = ei;
+                    j = ej;
+                } else {
+                    if (ca != cb) return ca - cb;
+                    i++;
+                    j++;
+                }
+            }
+            return (a.length() - i) - (b.length() - j);
+        }
+    };
+
+    // Background thread that polls the directory
+    private static class Watcher extends Thread {
+
+        final File dir;
+        private final String suffix;
+        private final FrameTimes times;
+        private final VoxelMask mask;
+        private final ImagePlus labels;
+        private final long interval;
+
+        // Files already processed, and size of the pending ones in the last
+        // poll
+        private final Set<String> done = new HashSet<String>();
+        private final Map<String, Long> sizes = new HashMap<String, Long>();
+        private FrameAccumulator accumulator;
+
+        Watcher(File dir, String suffix, FrameTimes times, ImagePlus mask,
+                ImagePlus labels, long interval) {
+            super("Watch Frames " + dir);
+            if (!dir.isDirectory())
+                throw new IllegalArgumentException("Not a directory: " + dir);
+            this.dir = dir;
+            this.suffix = suffix;
+            this.times = times;
+            this.mask = mask == null ? null : VoxelMask.fromImage(mask);
+            this.labels = labels;
+            this.interval = Math.max(100, interval);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            IJ.showStatus("Watching " + dir);
+            try {
+                while (!isInterrupted()) {
+                    poll();
+                    Thread.sleep(interval);
+                }
+            } catch (InterruptedException e) {
+                // Stopped by the user
+            }
+            IJ.showStatus("Stopped watching " + dir);
+        }
+
+        private void poll() {
+            String [] names = dir.list();
+            if (names == null) return;
+            Arrays.sort(names, NATURAL_ORDER);
+            for (String name : names) {
+                if (!name.endsWith(suffix) || done.contains(name)) continue;
+                File file = new File(dir, name);
+                if (!file.isFile()) continue;
+                // Wait until the file stops growing, keeping the order
+                long length = file.length();
+                Long last = sizes.put(name, length);
+                if (last == null || last != length || length == 0) return;
+                sizes.remove(name);
+                done.add(name);
+
+                ImagePlus frame = IJ.openImage(file.getPath());
+                if (frame == null) {
+                    IJ.log("Watch Frames: cannot open " + file);
+                    continue;
+                }
+                try {
+                    add(frame);
+                } catch (IllegalArgumentException e) {
+                    IJ.log("Watch Frames: " + name + ": " + e.getMessage());
+                    continue;
+                }
+                publish();
+                if (isInterrupted()) return;
+            }
+        }
+
+        private void add(ImagePlus frame) {
+            boolean first = accumulator == null;
+            if (first)
+                accumulator = new FrameAccumulator(frame.getWidth(),
+                                                   frame.getHeight(),
+                                                   frame.getStackSize(),
+                                                   mask, labels);
+            int n = accumulator.getFrames();
+            double duration = 1.0;
+            if (times != null)
+                duration = times.getDuration(Math.min(n,
+                                                      times.getFrames() - 1));
+            accumulator.addFrame(frame, duration);
+            if (first) {
+                accumulator.getAverage().setTitle(dir.getName()
+                                                  + " (running average)");
+                accumulator.getAUC().setTitle(dir.getName() + " (AUC)");
+                accumulator.getAverage().show();
+                accumulator.getAUC().show();
+            }
+        }
+
+        // Shows the TACs measured so far, as in Measure Time Activity or
+        // Label Time Activity
+        private void publish() {
+            FrameAccumulator a = accumulator;
+            ResultsTable rt = new ResultsTable();
+            for (int g = labels == null ? 0 : 1; g < a.getGroups(); g++) {
+                if (a.getCount(g) == 0) continue;
+                for (int f = 0; f < a.getFrames(); f++) {
+                    rt.incrementCounter();
+                    if (labels != null)
+                        rt.addValue("Label", g);
+                    rt.addValue("Frame", f + 1);
+                    rt.addValue("Activity", a.getMean(g, f));
+                    rt.addValue("SD", a.getSD(g, f));
+                    rt.addValue("Min", a.getMin(g, f));
+                    rt.addValue("Max", a.getMax(g, f));
+                    rt.addValue("Voxels", a.getCount(g));
+                }
+            }
+            rt.showRowNumbers(false);
+            rt.show("Incremental TAC");
+            IJ.showStatus("Watching " + dir + ": " + a.getFrames()
+                          + " frames");
+        }
+    }
+}